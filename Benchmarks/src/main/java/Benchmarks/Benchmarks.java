@@ -0,0 +1,36 @@
+package Benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs the JMH suites with the usual JMH command line, but saves results as JSON in
+ * benchmark-results/ by default, so runs from different commits can be compared.
+ * -Dbenchmarks.label names the result file (e.g. after the commit being measured).
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            String label = System.getProperty("benchmarks.label",
+                    new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+            Path results = Files.createDirectories(Paths.get("benchmark-results"));
+            options.result(results.resolve(label + ".json").toString());
+        }
+        new Runner(options.build()).run();
+    }
+}
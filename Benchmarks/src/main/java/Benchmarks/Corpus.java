@@ -0,0 +1,129 @@
+package Benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a reproducible corpus of Polish and English text files, so benchmarks run offline
+ * and see the same input on every commit. Files alternate between the two languages and are
+ * built from shuffled sentences, which keeps language detection reliable and gives phrase
+ * queries something to match.
+ */
+public class Corpus {
+    static final String[] ENGLISH = {
+            "The quick brown fox jumps over the lazy dog near the river bank.",
+            "Search engines build an inverted index of every word in the collection.",
+            "This document describes how the indexer extracts text from many files.",
+            "Every morning the old man walked to the market to buy fresh bread.",
+            "The committee will publish its final report at the end of the month.",
+            "Students should read the whole chapter before they attend the lecture.",
+            "Heavy rain caused flooding in several villages along the northern coast.",
+            "The library keeps thousands of books about history, science and art.",
+            "Our team spent the weekend fixing bugs and writing better documentation.",
+            "A good search result shows the most relevant passage to the reader.",
+            "The museum opened a new exhibition of paintings from the last century.",
+            "Scientists measured the temperature of the ocean at different depths.",
+    };
+    static final String[] POLISH = {
+            "Szybki brązowy lis przeskoczył nad leniwym psem przy brzegu rzeki.",
+            "Wyszukiwarka buduje indeks odwrócony wszystkich słów w kolekcji dokumentów.",
+            "Ten dokument opisuje, jak indeksator wydobywa tekst z wielu plików.",
+            "Każdego ranka starszy pan chodził na targ po świeży chleb i mleko.",
+            "Komisja opublikuje końcowe sprawozdanie pod koniec przyszłego miesiąca.",
+            "Studenci powinni przeczytać cały rozdział przed pójściem na wykład.",
+            "Ulewne deszcze spowodowały powódź w kilku wsiach na północnym wybrzeżu.",
+            "Biblioteka przechowuje tysiące książek o historii, nauce i sztuce.",
+            "Nasz zespół spędził weekend na poprawianiu błędów i pisaniu dokumentacji.",
+            "Dobry wynik wyszukiwania pokazuje czytelnikowi najważniejszy fragment tekstu.",
+            "Muzeum otworzyło nową wystawę obrazów z ubiegłego stulecia.",
+            "Naukowcy zmierzyli temperaturę oceanu na różnych głębokościach.",
+    };
+
+    private Corpus() {
+    }
+
+    /**
+     * Writes count files of the given number of sentences directly into dir.
+     */
+    public static List<Path> generate(Path dir, int count, int sentences, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(write(dir, i, sentences, random));
+        }
+        return files;
+    }
+
+    /**
+     * Creates roots directories under dir, each with filesPerRoot files spread over a few
+     * subdirectories, and returns the roots.
+     */
+    public static List<Path> generateTree(Path dir, int roots, int filesPerRoot, int sentences, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<Path> result = new ArrayList<>();
+        for (int r = 0; r < roots; r++) {
+            Path root = Files.createDirectories(dir.resolve(String.format("root%04d", r)));
+            for (int i = 0; i < filesPerRoot; i++) {
+                Path sub = Files.createDirectories(root.resolve("d" + (i % 3)));
+                write(sub, i, sentences, random);
+            }
+            result.add(root);
+        }
+        return result;
+    }
+
+    private static Path write(Path dir, int index, int sentences, Random random) throws IOException {
+        boolean polish = index % 2 == 0;
+        String[] pool = polish ? POLISH : ENGLISH;
+        Path file = dir.resolve(String.format("%s%05d.txt", polish ? "pl" : "en", index));
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < sentences; i++) {
+                writer.write(pool[random.nextInt(pool.length)]);
+                writer.write(i % 5 == 4 ? "\n" : " ");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A query matching the corpus for the given language ("en" or "pl") and query mode.
+     */
+    public static String query(String lang, String mode) {
+        boolean polish = lang.equals("pl");
+        switch (mode) {
+            case "phrase":
+                return polish ? "brązowy lis" : "brown fox";
+            case "fuzzy":
+                return polish ? "wyszukiwarak" : "serach";
+            case "prefix":
+                return polish ? "wyszuk" : "sear";
+            default:
+                return polish ? "dokument" : "document";
+        }
+    }
+
+    public static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package Benchmarks;
+
+import Indexer.IndexFixture;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of indexing one file from watch mode or --add: Tika parse, language detection,
+ * analysis and the index write. Tika and the language models are loaded before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexingBenchmark {
+    private static final int FILES = 200;
+
+    @Param({"20", "2000"})
+    public int sentences;
+
+    private Path corpus;
+    private Path index;
+    private List<Path> files;
+    private IndexFixture fixture;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Files.createTempDirectory("benchmark-corpus").toRealPath();
+        files = Corpus.generate(corpus, FILES, sentences, 42);
+        index = Files.createTempDirectory("benchmark-index");
+        fixture = new IndexFixture(index);
+        fixture.warmUp();
+    }
+
+    @Benchmark
+    public void addSingleFileToIndex() throws IOException {
+        Path file = files.get(next++ % files.size());
+        // a regular file is indexed directly, without the pipeline
+        fixture.addFile(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+        Corpus.delete(index);
+        Corpus.delete(corpus);
+    }
+}
@@ -0,0 +1,63 @@
+package Benchmarks;
+
+import Indexer.IndexFixture;
+import Searcher.SearchFixture;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a REPL query, rendering included, for each query mode with details
+ * on and off. The result cache is disabled, so every invocation runs the query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+    private static final int FILES = 2000;
+
+    @Param({"term", "phrase", "fuzzy", "prefix"})
+    public String mode;
+
+    @Param({"off", "on"})
+    public String details;
+
+    @Param({"en", "pl"})
+    public String lang;
+
+    @Param({"10"})
+    public String limit;
+
+    private Path corpus;
+    private Path index;
+    private SearchFixture fixture;
+    private String query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        corpus = Files.createTempDirectory("benchmark-corpus").toRealPath();
+        Corpus.generate(corpus, FILES, 50, 42);
+        index = Files.createTempDirectory("benchmark-index");
+        IndexFixture.build(corpus, index);
+        fixture = new SearchFixture(index, lang, details, limit, mode);
+        query = Corpus.query(lang, mode);
+    }
+
+    @Benchmark
+    public void doQuery() throws Exception {
+        fixture.query(query);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+        Corpus.delete(index);
+        Corpus.delete(corpus);
+    }
+}
@@ -0,0 +1,75 @@
+package Benchmarks;
+
+import Indexer.IndexFixture;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing registered roots and removing one with --rm as the number of roots, and with it
+ * the size of the index, grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+    private static final int FILES_PER_ROOT = 6;
+
+    @Param({"10", "100", "1000"})
+    public int roots;
+
+    private Path corpus;
+    private Path index;
+    private List<Path> rootPaths;
+    private IndexFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Files.createTempDirectory("benchmark-corpus").toRealPath();
+        rootPaths = Corpus.generateTree(corpus, roots, FILES_PER_ROOT, 10, 42);
+        index = Files.createTempDirectory("benchmark-index");
+        fixture = new IndexFixture(index);
+        for (Path root : rootPaths) {
+            fixture.addRoot(root);
+        }
+    }
+
+    @Benchmark
+    public Collection<String> getAllRegistered() throws IOException {
+        return fixture.listRoots();
+    }
+
+    @Benchmark
+    public void removeSubtree(Subtree subtree) throws IOException {
+        fixture.removeRoot(subtree.root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+        Corpus.delete(index);
+        Corpus.delete(corpus);
+    }
+
+    /**
+     * The first root, added again as with --add before every removal.
+     */
+    @State(Scope.Thread)
+    public static class Subtree {
+        Path root;
+
+        @Setup(Level.Invocation)
+        public void restore(RegistryBenchmark benchmark) throws IOException {
+            root = benchmark.rootPaths.get(0);
+            benchmark.fixture.addRoot(root);
+        }
+    }
+}
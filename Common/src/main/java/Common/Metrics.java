@@ -0,0 +1,258 @@
+package Common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of processing stages. Every value is readable as a JMX
+ * attribute, and the whole set can be appended to a file as one JSON line per interval.
+ * Shared by the Indexer and the Searcher.
+ */
+public class Metrics implements DynamicMBean, Closeable {
+    private static Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    private final String description;
+    private final long started = System.nanoTime();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private ObjectName registeredAs;
+    private ScheduledExecutorService dumper;
+    private Path dumpFile;
+
+    public Metrics(String description) {
+        this.description = description;
+    }
+
+    public void add(String counter, long delta) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public void record(String timer, long nanos) {
+        timers.computeIfAbsent(timer, name -> new Timer()).record(nanos);
+    }
+
+    /**
+     * Forgets the counters and timers whose names start with prefix.
+     */
+    public void clear(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        timers.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    public long count(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Counters with their mean rate since start, and for every timer its count, total,
+     * mean, maximum and approximate percentiles in microseconds.
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        double uptimeSeconds = (System.nanoTime() - started) / 1e9;
+        values.put("uptimeSeconds", Math.round(uptimeSeconds));
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            long count = counter.getValue().sum();
+            values.put(counter.getKey(), count);
+            values.put(counter.getKey() + ".perSecond", uptimeSeconds > 0 ? Math.round(count / uptimeSeconds * 100) / 100.0 : 0);
+        }
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            timer.getValue().snapshot(timer.getKey(), values);
+        }
+        return values;
+    }
+
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            text.append(value.getKey()).append(" = ").append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"time\":").append(System.currentTimeMillis());
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            json.append(",\"").append(value.getKey()).append("\":").append(value.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    public void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredAs = objectName;
+        } catch (JMException e) {
+            logger.warn("Could not register metrics as {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a snapshot to file every intervalMillis, and once more on close.
+     */
+    public synchronized void dumpTo(Path file, long intervalMillis) {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dumper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, intervalMillis);
+        dumper.scheduleWithFixedDelay(() -> dump(file), interval, interval, TimeUnit.MILLISECONDS);
+        dumpFile = file;
+        logger.info("Dumping metrics to {} every {} ms", file, interval);
+    }
+
+    private void dump(Path file) {
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(toJson());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            logger.warn("Could not dump metrics to {}", file);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+            dump(dumpFile);
+        }
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException ignore) {
+                // already gone
+            }
+            registeredAs = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Number> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // the attribute set grows as new stages and failure causes are seen
+        SortedMap<String, Number> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> value : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), description, attributes, null, null, null);
+    }
+
+    /**
+     * Latency histogram with power-of-two buckets in microseconds, so percentiles are
+     * accurate to within a factor of two at a fixed, tiny cost per sample.
+     */
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            long micros = Math.max(1, nanos / 1000);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(micros));
+        }
+
+        void snapshot(String name, Map<String, Number> values) {
+            long n = count.sum();
+            long total = totalNanos.sum();
+            values.put(name + ".count", n);
+            values.put(name + ".totalMillis", TimeUnit.NANOSECONDS.toMillis(total));
+            values.put(name + ".meanMicros", n == 0 ? 0 : total / n / 1000);
+            values.put(name + ".maxMicros", maxNanos.get() / 1000);
+            values.put(name + ".p50Micros", percentile(n, 0.50));
+            values.put(name + ".p90Micros", percentile(n, 0.90));
+            values.put(name + ".p99Micros", percentile(n, 0.99));
+        }
+
+        // upper bound of the bucket containing the given fraction of samples
+        private long percentile(long n, double fraction) {
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << (i + 1)) - 1, maxNanos.get() / 1000);
+                }
+            }
+            return maxNanos.get() / 1000;
+        }
+    }
+}
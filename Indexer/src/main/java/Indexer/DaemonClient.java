@@ -0,0 +1,88 @@
+package Indexer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Forwards a command line call to a running IndexerDaemon.
+ */
+class DaemonClient {
+    private static Logger logger = LoggerFactory.getLogger(DaemonClient.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    // the daemon sends a heartbeat while a command runs, so a longer silence means it hangs
+    private static final int READ_TIMEOUT_MILLIS = (int) (3 * IndexerDaemon.HEARTBEAT_MILLIS);
+
+    private DaemonClient() {
+    }
+
+    /**
+     * Returns null when no daemon is running, otherwise whether the command succeeded.
+     * The command's output is written to out.
+     */
+    static Boolean send(Path daemonFile, String[] args, PrintStream out) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(daemonFile, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (lines.size() < 2) {
+            logger.warn("Ignoring malformed daemon file {}", daemonFile);
+            return null;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(lines.get(0).trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring malformed daemon file {}", daemonFile);
+            return null;
+        }
+        try (Socket socket = new Socket()) {
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+            } catch (ConnectException e) {
+                // left behind by a daemon that was killed
+                logger.info("Daemon file {} is stale", daemonFile);
+                return null;
+            }
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            PrintStream request = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            request.println(lines.get(1).trim());
+            for (String arg : args) {
+                request.println(arg);
+            }
+            request.println();
+            BufferedReader reply = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (String line = reply.readLine(); line != null; line = reply.readLine()) {
+                if (line.equals(IndexerDaemon.HEARTBEAT)) {
+                    continue;
+                }
+                if (line.startsWith(IndexerDaemon.OUTPUT_PREFIX)) {
+                    out.println(line.substring(IndexerDaemon.OUTPUT_PREFIX.length()));
+                } else if (line.equals("OK")) {
+                    return true;
+                } else {
+                    logger.error("Daemon replied: {}", line);
+                    return false;
+                }
+            }
+            logger.error("Daemon closed the connection without a reply");
+            return false;
+        } catch (SocketTimeoutException e) {
+            logger.error("Daemon did not answer within {} ms", READ_TIMEOUT_MILLIS);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package Indexer;
+
+import org.apache.tika.langdetect.OptimaizeLangDetector;
+import org.apache.tika.language.detect.LanguageDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Language detectors with their models loaded, kept for the lifetime of the process.
+ * A detector holds the text fed to it, so each one is used by a single thread at a time:
+ * callers borrow one and release it when done. New detectors are only loaded when all
+ * existing ones are borrowed, so the pool grows to the number of concurrent extractions.
+ */
+class DetectorPool {
+    private static Logger logger = LoggerFactory.getLogger(DetectorPool.class);
+
+    private final Queue<LanguageDetector> idle = new ConcurrentLinkedQueue<>();
+
+    LanguageDetector borrow() throws IOException {
+        LanguageDetector detector = idle.poll();
+        if (detector != null) {
+            return detector;
+        }
+        long start = System.currentTimeMillis();
+        detector = new OptimaizeLangDetector().loadModels();
+        logger.info("Loaded language models in {} ms", System.currentTimeMillis() - start);
+        return detector;
+    }
+
+    void release(LanguageDetector detector) {
+        detector.reset();
+        idle.offer(detector);
+    }
+}
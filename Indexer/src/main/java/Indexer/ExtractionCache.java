@@ -0,0 +1,240 @@
+package Indexer;
+
+import Common.Metrics;
+import org.apache.tika.exception.TikaException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Extracted text and detected language of files, keyed by content digest and kept on disk,
+ * so that rebuilding the index or indexing a copy of a file does not parse it again.
+ * Entries are compressed files named after their key. When the cache grows over maxBytes,
+ * the least recently used entries are deleted until it is 10% under the limit.
+ * Copies of one file extracted at the same time are parsed once, the others wait for that result.
+ */
+class ExtractionCache {
+    private static Logger logger = LoggerFactory.getLogger(ExtractionCache.class);
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Metrics metrics;
+    private final AtomicLong size = new AtomicLong();
+    // extractions running right now, by key
+    private final ConcurrentMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    static class Entry {
+        final String lang;
+        final String body;
+
+        Entry(String lang, String body) {
+            this.lang = lang;
+            this.body = body;
+        }
+    }
+
+    interface Extraction {
+        Entry run() throws IOException, TikaException;
+    }
+
+    ExtractionCache(Path directory, long maxBytes, Metrics metrics) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            logger.error("Cache directory does not exist and cannot be created: {}", directory);
+            throw e;
+        }
+        long total = 0;
+        for (Path file : entries()) {
+            total += Files.size(file);
+        }
+        size.set(total);
+        logger.info("Opened extraction cache {} holding {} bytes, limit {} bytes", directory, total, maxBytes);
+    }
+
+    /**
+     * Key of a file's entry. Extracted text depends on the character limit and the detected
+     * language on the detection sample, so entries made with other settings are not reused.
+     */
+    static String key(String digest, int maxChars, int detectionSampleChars) {
+        return digest + "-" + maxChars + "-" + detectionSampleChars;
+    }
+
+    /**
+     * The entry of key, or the result of extraction, which is then cached. While an entry is
+     * being extracted, other callers with the same key wait for it instead of parsing the same
+     * content again; callers with other keys do not wait at all.
+     */
+    Entry get(String key, Extraction extraction) throws IOException, TikaException {
+        CompletableFuture<Entry> own = new CompletableFuture<>();
+        CompletableFuture<Entry> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            metrics.increment("cache.waits");
+            return await(running);
+        }
+        try {
+            Entry entry = get(key);
+            if (entry == null) {
+                entry = extraction.run();
+                put(key, entry);
+            }
+            own.complete(entry);
+            return entry;
+        } catch (Throwable t) {
+            own.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    // waiters see the same failure as the extraction they waited for
+    private static Entry await(CompletableFuture<Entry> running) throws IOException, TikaException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for another extraction");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof TikaException) {
+                throw (TikaException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    Entry get(String key) {
+        Path file = file(key);
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+            String lang = in.readUTF();
+            StringBuilder body = new StringBuilder();
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, read);
+            }
+            // the modification time orders entries for eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            metrics.increment("cache.hits");
+            return new Entry(lang, body.toString());
+        } catch (NoSuchFileException e) {
+            metrics.increment("cache.misses");
+            return null;
+        } catch (IOException e) {
+            logger.warn("Dropping unreadable cache entry {}", file);
+            metrics.increment("cache.misses");
+            delete(file);
+            return null;
+        }
+    }
+
+    void put(String key, Entry entry) {
+        Path file = file(key);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))) {
+                out.writeUTF(entry.lang);
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                writer.write(entry.body);
+                writer.flush();
+            }
+            long written = Files.size(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            metrics.add("cache.bytesWritten", written);
+            if (size.addAndGet(written) > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            // the cache is only an optimization, so the file is indexed anyway
+            logger.warn("Could not write cache entry {}", file);
+            delete(temp);
+        }
+    }
+
+    private synchronized void evict() throws IOException {
+        List<Path> files = entries();
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        if (total <= maxBytes) {
+            size.set(total);
+            return;
+        }
+        files.sort(Comparator.comparing(ExtractionCache::lastModified));
+        long target = maxBytes - maxBytes / 10;
+        int evicted = 0;
+        for (Path file : files) {
+            if (total <= target) {
+                break;
+            }
+            long length = Files.size(file);
+            if (delete(file)) {
+                total -= length;
+                evicted++;
+            }
+        }
+        size.set(total);
+        metrics.add("cache.evictions", evicted);
+        logger.info("Evicted {} cache entries, {} bytes left", evicted, total);
+    }
+
+    private List<Path> entries() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.filter(path -> Files.isRegularFile(path) && !path.getFileName().toString().endsWith(".tmp"))
+                    .forEach(files::add);
+        }
+        return files;
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete cache entry {}", file);
+            return false;
+        }
+    }
+
+    // entries are spread over subdirectories by the first two characters of the key
+    private Path file(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+}
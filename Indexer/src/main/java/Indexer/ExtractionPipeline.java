@@ -0,0 +1,286 @@
+package Indexer;
+
+import org.apache.lucene.document.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+
+/**
+ * Indexes a directory tree in three stages: one thread discovers files, a pool of workers
+ * parses them and detects their language, and the calling thread writes the documents.
+ * Both queues between the stages are bounded, so at most a few documents are held in memory.
+ * With more than one scan thread, discovery lists directories in parallel.
+ * When indexing stops early, documents that were extracted but not written have their
+ * streamed bodies closed, which stops the parsers behind them.
+ */
+class ExtractionPipeline {
+    private static Logger logger = LoggerFactory.getLogger(ExtractionPipeline.class);
+    private static final Path END_OF_PATHS = Paths.get("");
+    private static final Document END_OF_DOCUMENTS = new Document();
+
+    private final IndexHandler handler;
+    private final int workers;
+    private int scanThreads = 1;
+    private final BlockingQueue<Path> paths;
+    private final BlockingQueue<Document> documents;
+    private final AtomicBoolean workerFailed = new AtomicBoolean(false);
+    // set once the writer stops taking documents
+    private volatile boolean aborted = false;
+
+    ExtractionPipeline(IndexHandler handler, int workers, int queueCapacity) {
+        this.handler = handler;
+        this.workers = workers;
+        this.paths = new ArrayBlockingQueue<>(queueCapacity);
+        this.documents = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    ExtractionPipeline setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+        return this;
+    }
+
+    void run(Path root) throws IOException {
+        run(Collections.singletonList(root), (file, attrs) -> true);
+    }
+
+    /**
+     * Walks all roots, which may be directories or single files. Only files accepted by the filter
+     * are parsed. The filter is called on the discovery threads, so it has to be thread-safe.
+     */
+    void run(Collection<Path> roots, BiPredicate<Path, BasicFileAttributes> filter) throws IOException {
+        if (roots.size() == 1) {
+            logger.info("Indexing {} with {} extraction workers", roots.iterator().next(), workers);
+        } else {
+            logger.info("Indexing {} paths with {} extraction workers", roots.size(), workers);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(workers + 1);
+        try {
+            Future<Void> discovery = pool.submit(() -> {
+                discover(roots, filter);
+                return null;
+            });
+            for (int i = 0; i < workers; i++) {
+                pool.submit(this::extract);
+            }
+            int finished = 0;
+            while (finished < workers) {
+                Document doc = documents.take();
+                if (doc == END_OF_DOCUMENTS) {
+                    finished++;
+                    continue;
+                }
+                try {
+                    handler.writeDocument(doc);
+                } catch (IOException | IllegalArgumentException ignore) {
+                    logger.info("Did not index file {} - exception occured", doc.get("fullPath"));
+                }
+            }
+            if (workerFailed.get()) {
+                discovery.cancel(true);
+                logger.error("Extraction worker stopped unexpectedly while indexing {}", roots);
+                throw new IOException("Extraction worker stopped unexpectedly");
+            }
+            discovery.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing " + roots);
+        } catch (ExecutionException e) {
+            logger.error("Error while walking {}", roots);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            aborted = true;
+            pool.shutdownNow();
+            discard();
+        }
+    }
+
+    // workers that are still running discard what they extract from now on, see extract
+    private void discard() {
+        List<Document> undelivered = new ArrayList<>();
+        documents.drainTo(undelivered);
+        for (Document doc : undelivered) {
+            IndexHandler.closeStreamedBody(doc);
+        }
+    }
+
+    private void discover(Collection<Path> roots, BiPredicate<Path, BasicFileAttributes> filter) throws IOException, InterruptedException {
+        try {
+            if (scanThreads > 1) {
+                scan(roots, filter);
+            } else {
+                for (Path root : roots) {
+                    walk(root, filter);
+                }
+            }
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                paths.put(END_OF_PATHS);
+            }
+        }
+    }
+
+    private void walk(Path root, BiPredicate<Path, BasicFileAttributes> filter) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!filter.test(file, attrs)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                try {
+                    paths.put(file);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof NoSuchFileException) {
+                    logger.info("File {} disappeared before it could be indexed", file);
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    private void scan(Collection<Path> roots, BiPredicate<Path, BasicFileAttributes> filter) throws IOException, InterruptedException {
+        ForkJoinPool scanners = new ForkJoinPool(scanThreads);
+        try {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            for (Path root : roots) {
+                tasks.add(scanners.submit(new ScanTask(root, null, filter)));
+            }
+            for (ForkJoinTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            scanners.shutdownNow();
+        }
+    }
+
+    private void offer(Path file, BasicFileAttributes attrs, BiPredicate<Path, BasicFileAttributes> filter) {
+        if (!filter.test(file, attrs)) {
+            return;
+        }
+        try {
+            paths.put(file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException());
+        }
+    }
+
+    /**
+     * Lists one directory and forks a subtask for each subdirectory. Like walkFileTree,
+     * it does not follow symbolic links.
+     */
+    private class ScanTask extends RecursiveAction {
+        private final Path path;
+        private final BasicFileAttributes attrs;
+        private final BiPredicate<Path, BasicFileAttributes> filter;
+
+        ScanTask(Path path, BasicFileAttributes attrs, BiPredicate<Path, BasicFileAttributes> filter) {
+            this.path = path;
+            this.attrs = attrs;
+            this.filter = filter;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                BasicFileAttributes pathAttrs = attrs != null ? attrs
+                        : Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!pathAttrs.isDirectory()) {
+                    offer(path, pathAttrs, filter);
+                    return;
+                }
+                List<ScanTask> subdirectories = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes entryAttrs;
+                        try {
+                            entryAttrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (NoSuchFileException e) {
+                            logger.info("File {} disappeared before it could be indexed", entry);
+                            continue;
+                        }
+                        if (entryAttrs.isDirectory()) {
+                            subdirectories.add(new ScanTask(entry, entryAttrs, filter));
+                        } else {
+                            offer(entry, entryAttrs, filter);
+                        }
+                    }
+                }
+                invokeAll(subdirectories);
+            } catch (NoSuchFileException e) {
+                logger.info("File {} disappeared before it could be indexed", path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void deliver(Document doc) throws InterruptedException {
+        try {
+            documents.put(doc);
+        } catch (InterruptedException e) {
+            IndexHandler.closeStreamedBody(doc);
+            throw e;
+        }
+        // the writer may have drained the queue already
+        if (aborted && documents.remove(doc)) {
+            IndexHandler.closeStreamedBody(doc);
+        }
+    }
+
+    private void extract() {
+        try {
+            for (; ; ) {
+                Path file = paths.take();
+                if (file == END_OF_PATHS) {
+                    return;
+                }
+                try {
+                    deliver(handler.extractDocument(file));
+                } catch (IOException | RuntimeException ignore) {
+                    logger.info("Did not index file {} - exception occured", file);
+                    // don't index files that can't be read.
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            logger.error("Extraction worker failed", t);
+            workerFailed.set(true);
+        } finally {
+            try {
+                documents.put(END_OF_DOCUMENTS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package Indexer;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Modification metadata of a file, as recorded in the index next to its content.
+ * Digest is null when content digests are disabled, lang is the shard the file was read from, if any.
+ */
+class FileState {
+    final long modified;
+    final long size;
+    final String digest;
+    final String lang;
+
+    FileState(long modified, long size, String digest) {
+        this(modified, size, digest, null);
+    }
+
+    FileState(long modified, long size, String digest, String lang) {
+        this.modified = modified;
+        this.size = size;
+        this.digest = digest;
+        this.lang = lang;
+    }
+
+    FileState(BasicFileAttributes attrs, String digest) {
+        this(attrs.lastModifiedTime().toMillis(), attrs.size(), digest);
+    }
+
+    boolean sameAttributes(BasicFileAttributes attrs) {
+        return modified == attrs.lastModifiedTime().toMillis() && size == attrs.size();
+    }
+}
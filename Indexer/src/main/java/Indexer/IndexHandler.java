@@ -1,19 +1,21 @@
 package Indexer;
 
+import Common.Metrics;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.morfologik.MorfologikAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
+import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.tika.Tika;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.StringHelper;
 import org.apache.tika.exception.TikaException;
-import org.apache.tika.langdetect.OptimaizeLangDetector;
 import org.apache.tika.language.detect.LanguageDetector;
 import org.apache.tika.language.detect.LanguageResult;
 import org.slf4j.Logger;
@@ -22,18 +24,76 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Collection;
-import java.util.HashSet;
-
-import static java.lang.Math.toIntExact;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IndexHandler implements AutoCloseable {
     private static Logger logger = LoggerFactory.getLogger(IndexHandler.class);
-    private Directory dir;
+    static final int DEFAULT_COMMIT_EVERY_DOCS = 1000;
+    static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 30_000;
+    // offsets in postings let the searcher highlight without re-analyzing the body
+    private static final FieldType BODY_TYPE = new FieldType(TextField.TYPE_STORED);
+    private static final FieldType STREAMED_BODY_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static final long DEFAULT_STREAM_THRESHOLD_BYTES = 10 * 1024 * 1024;
+    // stored (and highlighted) prefix of bodies that are indexed from a stream
+    private static final int MAX_STORED_CHARS = 100_000;
+    static final int DEFAULT_DETECTION_SAMPLE_CHARS = 16 * 1024;
+    private static final int DETECTION_CHUNK_CHARS = 2048;
+    // commit data of the roots shard: roots whose files updatePending extracts again
+    private static final String PENDING_UPDATE = "pendingUpdate";
+
+    static {
+        BODY_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        BODY_TYPE.freeze();
+        STREAMED_BODY_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        STREAMED_BODY_TYPE.freeze();
+    }
+
+    private Analyzer analyzer;
+    private ShardRegistry shards;
+    private final int commitEveryDocs;
+    private final long commitIntervalMillis;
+    private final AtomicInteger uncommitted = new AtomicInteger();
+    private volatile long lastCommit = System.currentTimeMillis();
+    private ScheduledExecutorService committer;
+    private int extractionWorkers = Runtime.getRuntime().availableProcessors();
+    private int extractionQueueCapacity = 2 * extractionWorkers;
+    private boolean contentDigest = false;
+    private int scanThreads = 1;
+    private int maxChars = TextExtractor.DEFAULT_MAX_CHARS;
+    private long parseTimeoutMillis = TextExtractor.DEFAULT_TIMEOUT_MILLIS;
+    private long streamThresholdBytes = DEFAULT_STREAM_THRESHOLD_BYTES;
+    private int maxStreamedChars = 0;
+    private boolean isolatedParsing = false;
+    private TextExtractor extractor;
+    private final DetectorPool detectors = new DetectorPool();
+    private int detectionSampleChars = DEFAULT_DETECTION_SAMPLE_CHARS;
+    private ExtractionCache cache;
+    private final Metrics metrics = new Metrics("Indexer stages");
 
     IndexHandler(String operatingDirectory) throws IOException {
+        this(operatingDirectory, DEFAULT_COMMIT_EVERY_DOCS, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the index and its writers, which are kept for the lifetime of the handler.
+     * Changes are committed after commitEveryDocs changes or commitIntervalMillis, whichever comes first,
+     * and once more on close().
+     */
+    IndexHandler(String operatingDirectory, int commitEveryDocs, long commitIntervalMillis) throws IOException {
+        this.commitEveryDocs = Math.max(1, commitEveryDocs);
+        this.commitIntervalMillis = Math.max(1, commitIntervalMillis);
         Path path = Paths.get(operatingDirectory);
         try {
             Files.createDirectories(path);
@@ -41,12 +101,334 @@ public class IndexHandler implements AutoCloseable {
             logger.error("Directory does not exist and cannot be created: {}", path);
             throw e;
         }
+        analyzer = createAnalyzer();
+        try {
+            shards = new ShardRegistry(path, analyzer, TimedMergeScheduler::new);
+        } catch (IOException e) {
+            analyzer.close();
+            throw e;
+        }
+        try {
+            migrateSingleIndex(path);
+        } catch (IOException e) {
+            logger.error("Could not move the single index at {} into shards, it is left as it was", path);
+            shards.close();
+            analyzer.close();
+            throw e;
+        }
+        committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-committer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(() -> {
+            try {
+                commit();
+            } catch (IOException e) {
+                logger.error("Periodic commit failed", e);
+            }
+        }, this.commitIntervalMillis, this.commitIntervalMillis, TimeUnit.MILLISECONDS);
+        metrics.registerMBean("Indexer:type=IndexHandler");
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Indexes written before language shards kept everything directly in the index directory.
+     * Their documents are copied segment by segment into the shard of their language, as told
+     * by their name-pl or name-en field, and their registered roots into the roots shard.
+     * Nothing is extracted or analyzed again. Documents written by older versions, without the
+     * fields removal and updates rely on, are not copied; their roots are left to updatePending.
+     * The old files are deleted only once the copies are committed, and copying again after
+     * a failure replaces the documents copied before.
+     */
+    private void migrateSingleIndex(Path path) throws IOException {
+        try (Directory legacy = FSDirectory.open(path)) {
+            if (!DirectoryReader.indexExists(legacy)) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            Collection<String> roots;
+            Map<String, Integer> copied = new LinkedHashMap<>();
+            Set<String> stale = new TreeSet<>(pendingUpdate());
+            try (DirectoryReader reader = DirectoryReader.open(legacy)) {
+                roots = registeredRoots(reader);
+                for (String lang : ShardRegistry.LANGUAGES) {
+                    List<CodecReader> documents = new ArrayList<>();
+                    List<Term> paths = new ArrayList<>();
+                    for (LeafReaderContext leaf : reader.leaves()) {
+                        CodecReader filtered = documentsOf(leaf.reader(), lang, roots, paths, stale);
+                        if (filtered.numDocs() > 0) {
+                            documents.add(filtered);
+                        }
+                    }
+                    if (documents.isEmpty()) {
+                        continue;
+                    }
+                    IndexWriter shard = shards.shard(lang);
+                    shard.deleteDocuments(paths.toArray(new Term[0]));
+                    shard.addIndexes(documents.toArray(new CodecReader[0]));
+                    shard.commit();
+                    copied.put(lang, paths.size());
+                }
+            }
+            for (String root : roots) {
+                shards.roots().updateDocument(new Term("StoredPath", root), rootDocument(root));
+            }
+            if (!stale.isEmpty()) {
+                logger.warn("Files under {} were indexed by an older version and will be extracted again", stale);
+                setPendingUpdate(stale);
+            }
+            shards.roots().commit();
+            for (String file : legacy.listAll()) {
+                if (file.startsWith(IndexFileNames.SEGMENTS) || file.startsWith("_") || file.equals(IndexWriter.WRITE_LOCK_NAME)) {
+                    legacy.deleteFile(file);
+                }
+            }
+            logger.info("Moved the single index into shards in {} ms: {} registered roots, documents by language {}",
+                    System.currentTimeMillis() - start, roots.size(), copied);
+        }
+    }
+
+    /**
+     * The file documents of one language in a segment of the single index, as a reader that
+     * shows every other document as deleted. Their paths are added to paths. Documents that
+     * lack current fields are left out, and the registered roots they are under added to stale.
+     */
+    private static CodecReader documentsOf(LeafReader leaf, String lang, Collection<String> roots,
+                                           List<Term> paths, Set<String> stale) throws IOException {
+        FixedBitSet live = new FixedBitSet(leaf.maxDoc());
+        Bits liveDocs = leaf.getLiveDocs();
+        Set<String> fields = new HashSet<>(Arrays.asList("fullPath", "name-pl"));
+        // copied segments keep their postings, so bodies indexed without offsets stay that way
+        FieldInfo body = leaf.getFieldInfos().fieldInfo("body-" + lang);
+        boolean offsets = body != null && body.getIndexOptions() == IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
+        SortedDocValues sortedPaths = leaf.getSortedDocValues("fullPath");
+        NumericDocValues modified = leaf.getNumericDocValues("modified");
+        NumericDocValues size = leaf.getNumericDocValues("size");
+        FixedBitSet withAncestors = withTerms(leaf, "ancestorPath");
+        for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            Document stored = leaf.document(doc, fields);
+            String fullPath = stored.get("fullPath");
+            // the same test writeDocument uses to choose the shard
+            String docLang = stored.get("name-pl") != null ? "pl" : "en";
+            if (fullPath == null || !docLang.equals(lang)) {
+                continue;
+            }
+            boolean current = offsets && withAncestors.get(doc)
+                    && sortedPaths != null && sortedPaths.advanceExact(doc)
+                    && modified != null && modified.advanceExact(doc)
+                    && size != null && size.advanceExact(doc);
+            if (current) {
+                live.set(doc);
+                paths.add(new Term("fullPath", fullPath));
+                continue;
+            }
+            for (String root : roots) {
+                if (fullPath.startsWith(directoryPrefix(root))) {
+                    stale.add(root);
+                }
+            }
+        }
+        int numDocs = live.cardinality();
+        return new FilterCodecReader(SlowCodecReaderWrapper.wrap(leaf)) {
+            @Override
+            public Bits getLiveDocs() {
+                return live;
+            }
+
+            @Override
+            public int numDocs() {
+                return numDocs;
+            }
+
+            @Override
+            public CacheHelper getCoreCacheHelper() {
+                return null;
+            }
+
+            @Override
+            public CacheHelper getReaderCacheHelper() {
+                return null;
+            }
+        };
+    }
+
+    // documents of leaf that have a term in field
+    private static FixedBitSet withTerms(LeafReader leaf, String field) throws IOException {
+        FixedBitSet docs = new FixedBitSet(leaf.maxDoc());
+        Terms terms = leaf.terms(field);
+        if (terms == null) {
+            return docs;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        while (termsEnum.next() != null) {
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            docs.or(postings);
+        }
+        return docs;
+    }
+
+    /**
+     * Extracts the files under roots left by migrateSingleIndex once more, so that they get
+     * the fields of this version, and then forgets the roots. Roots removed in the meantime
+     * are skipped.
+     */
+    void updatePending() throws IOException {
+        Set<String> roots = pendingUpdate();
+        if (roots.isEmpty()) {
+            return;
+        }
+        for (String root : roots) {
+            if (!isRegistered(root) || !Files.isDirectory(Paths.get(root))) {
+                logger.warn("Not updating {}, it is no longer registered or does not exist", root);
+                continue;
+            }
+            updateTree(Paths.get(root));
+        }
+        setPendingUpdate(Collections.emptySet());
+        uncommitted.incrementAndGet();
+        commit();
+    }
+
+    Set<String> pendingUpdate() {
+        for (Map.Entry<String, String> entry : shards.roots().getLiveCommitData()) {
+            if (entry.getKey().equals(PENDING_UPDATE) && !entry.getValue().isEmpty()) {
+                return new TreeSet<>(Arrays.asList(entry.getValue().split("\n")));
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    private void setPendingUpdate(Collection<String> roots) {
+        shards.roots().setLiveCommitData(Collections.singletonMap(PENDING_UPDATE, String.join("\n", roots)).entrySet());
+    }
+
+    // a root's path followed by the separator, which every path under it starts with
+    private static String directoryPrefix(String root) {
+        return root.endsWith(File.separator) ? root : root + File.separator;
+    }
+
+    private class TimedMergeScheduler extends ConcurrentMergeScheduler {
+        @Override
+        protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+            long start = System.nanoTime();
+            try {
+                super.doMerge(writer, merge);
+            } finally {
+                metrics.record("merge", System.nanoTime() - start);
+            }
+        }
+    }
+
+    void setExtractionWorkers(int workers) {
+        this.extractionWorkers = Math.max(1, workers);
+        logger.info("Setting extraction workers to {}", this.extractionWorkers);
+        resetExtractor();
+    }
+
+    void setExtractionQueueCapacity(int capacity) {
+        this.extractionQueueCapacity = Math.max(1, capacity);
+        logger.info("Setting extraction queue capacity to {}", this.extractionQueueCapacity);
+    }
+
+    void setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+        logger.info("Setting scan threads to {}", this.scanThreads);
+    }
+
+    void setMaxChars(int maxChars) {
+        this.maxChars = maxChars > 0 ? maxChars : Integer.MAX_VALUE;
+        logger.info("Setting max extracted characters to {}", this.maxChars);
+        resetExtractor();
+    }
+
+    void setParseTimeout(long parseTimeoutMillis) {
+        this.parseTimeoutMillis = Math.max(1, parseTimeoutMillis);
+        logger.info("Setting parse timeout to {} ms", this.parseTimeoutMillis);
+        resetExtractor();
+    }
+
+    void setStreamThreshold(long streamThresholdBytes) {
+        this.streamThresholdBytes = Math.max(0, streamThresholdBytes);
+        logger.info("Setting stream threshold to {} bytes", this.streamThresholdBytes);
+    }
+
+    /**
+     * Streamed files are not held in memory, so their text has a cap of its own, 0 meaning none.
+     */
+    void setMaxStreamedChars(int maxStreamedChars) {
+        this.maxStreamedChars = Math.max(0, maxStreamedChars);
+        logger.info("Setting max streamed characters to {}", this.maxStreamedChars);
+    }
+
+    void setIsolatedParsing(boolean isolatedParsing) {
+        this.isolatedParsing = isolatedParsing;
+        logger.info("Setting isolated parsing to {}", isolatedParsing);
+        resetExtractor();
+    }
+
+    void setDetectionSampleChars(int detectionSampleChars) {
+        this.detectionSampleChars = Math.max(DETECTION_CHUNK_CHARS, detectionSampleChars);
+        logger.info("Setting language detection sample to {} characters", this.detectionSampleChars);
+    }
+
+    /**
+     * Keeps extracted text in directory, up to maxBytes, and looks files up there by digest before parsing them.
+     * Files indexed from a stream are not cached.
+     */
+    void setExtractionCache(Path directory, long maxBytes) throws IOException {
+        this.cache = new ExtractionCache(directory, maxBytes, metrics);
+    }
+
+    void setContentDigest(boolean contentDigest) {
+        this.contentDigest = contentDigest;
+        logger.info("Setting content digest to {}", contentDigest);
+    }
+
+    private static Analyzer createAnalyzer() {
+        Analyzer polish = new MorfologikAnalyzer();
+        Analyzer english = new EnglishAnalyzer();
+        Map<String, Analyzer> perField = new HashMap<>();
+        perField.put("body-pl", polish);
+        perField.put("name-pl", polish);
+        perField.put("body-en", english);
+        perField.put("name-en", english);
+        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), perField);
+    }
+
+    private void changed(int count) throws IOException {
+        int pending = uncommitted.addAndGet(count);
+        if (pending >= commitEveryDocs || System.currentTimeMillis() - lastCommit >= commitIntervalMillis) {
+            commit();
+        }
+    }
+
+    synchronized void commit() throws IOException {
+        int pending = uncommitted.getAndSet(0);
+        if (pending == 0) {
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            dir = FSDirectory.open(path);
+            // a writer without changes since its last commit returns right away
+            for (IndexWriter writer : shards.all()) {
+                writer.commit();
+            }
+            metrics.record("commit", System.nanoTime() - start);
         } catch (IOException e) {
-            logger.error("FSDirectory could not open path: {}", path);
+            uncommitted.addAndGet(pending);
+            logger.error("IOException in commit: cannot access index");
             throw e;
         }
+        lastCommit = System.currentTimeMillis();
+        logger.info("Committed {} changes to index", pending);
     }
 
     private String sanitizeDirectoryPath(String path) throws IOException {
@@ -70,165 +452,605 @@ public class IndexHandler implements AutoCloseable {
     }
 
 
-    private void addSingleFileToIndex(Path path, LanguageDetector detector, Tika tika) throws IOException {
+    private void addSingleFileToIndex(Path path) throws IOException {
+        writeDocument(extractDocument(path));
+    }
+
+    /**
+     * Parses and identifies a single file. Safe to call from several threads, each call borrows
+     * its own detector from the pool. Files larger than the stream threshold are not
+     * read into memory: their body is indexed from a reader when the document is written,
+     * and only a prefix of it is stored.
+     */
+    Document extractDocument(Path path) throws IOException {
+        TextExtractor extractor = extractor();
+        LanguageDetector detector = detectors.borrow();
         try {
-            String body = tika.parseToString(path);
+            // attributes are read before parsing, so a file modified in the meantime looks changed next time
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            FileState state = new FileState(attrs, contentDigest ? digest(path) : null);
             String name = path.getFileName().toString();
             String fullPath = sanitizeAnyPath(path.toString());
-            LanguageResult identification = detector.detect(body);
-            if (!identification.isReasonablyCertain()) {
-                logger.warn("Not reasonably certain language (but probably {}): {}", identification.getLanguage(), fullPath);
-                throw new TikaException("not reasonably certain: maybe unknown language");
-            }
-            if (identification.isLanguage("pl")) {
-                logger.info("Adding file {} to index. Language is Polish.", fullPath);
-                try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new MorfologikAnalyzer())
-                        .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND))) {
-                    Document doc = new Document();
-                    Field pathField = new StringField("fullPath", fullPath, Field.Store.YES);
-                    doc.add(pathField);
-                    Field bodyField = new TextField("body-pl", body, Field.Store.YES);
-                    doc.add(bodyField);
-                    Field nameField = new TextField("name-pl", name, Field.Store.YES);
-                    doc.add(nameField);
-                    writer.updateDocument(new Term("fullPath", fullPath), doc);
-                }
-            } else if (identification.isLanguage("en")) {
-                logger.info("Adding file {} to index. Language is English.", fullPath);
-                try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new EnglishAnalyzer())
-                        .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND))) {
-                    Document doc = new Document();
-                    Field pathField = new StringField("fullPath", fullPath, Field.Store.YES);
-                    doc.add(pathField);
-                    Field bodyField = new TextField("body-en", body, Field.Store.YES);
-                    doc.add(bodyField);
-                    Field nameField = new TextField("name-en", name, Field.Store.YES);
-                    doc.add(nameField);
-                    writer.updateDocument(new Term("fullPath", fullPath), doc);
-                }
+            metrics.add("bytesRead", attrs.size());
+            if (attrs.size() > streamThresholdBytes) {
+                return extractStreamedDocument(path, fullPath, name, state, detector, extractor);
+            }
+            ExtractionCache.Entry extracted;
+            if (cache == null) {
+                extracted = extractAndIdentify(path, fullPath, detector, extractor);
             } else {
-                logger.warn("Language not Polish or English - detected as {}: {}", identification.getLanguage(), fullPath);
-                throw new TikaException("unsupported language");
+                String key = ExtractionCache.key(state.digest != null ? state.digest : digest(path),
+                        maxChars, detectionSampleChars);
+                extracted = cache.get(key, () -> extractAndIdentify(path, fullPath, detector, extractor));
             }
+            logger.info("Adding file {} to index. Language is {}.", fullPath, extracted.lang.equals("pl") ? "Polish" : "English");
+            return createDocument(fullPath, name, extracted.body, null, extracted.lang, state);
         } catch (TikaException e) {
             logger.warn("Tika threw an exception at: {}", path);
             throw new IOException();
+        } catch (TextExtractor.ExtractionTimeoutException e) {
+            metrics.increment("failures.timeout");
+            logger.warn("Extraction timed out at: {}", path);
+            throw new IOException();
         } catch (IOException e) {
+            // the extractor reports parser failures with the parser's exception as the cause
+            metrics.increment(e.getCause() != null ? "failures.parse" : "failures.io");
             logger.warn("Something other that Tika extractor threw an exception at: {}", path);
             throw new IOException();
+        } finally {
+            detectors.release(detector);
         }
     }
 
+    private ExtractionCache.Entry extractAndIdentify(Path path, String fullPath, LanguageDetector detector,
+                                                    TextExtractor extractor) throws IOException, TikaException {
+        long start = System.nanoTime();
+        String body = extractor.extract(path);
+        metrics.record("parse", System.nanoTime() - start);
+        metrics.add("charsExtracted", body.length());
+        return new ExtractionCache.Entry(identifyLanguage(body, detector, fullPath), body);
+    }
 
-    void addAllToIndex(String path, Boolean storePath) throws IOException {
+    private Document extractStreamedDocument(Path path, String fullPath, String name, FileState state,
+                                             LanguageDetector detector, TextExtractor extractor) throws IOException, TikaException {
+        long start = System.nanoTime();
+        Reader reader = extractor.open(path, maxStreamedChars);
+        try {
+            char[] prefix = new char[Math.min(maxChars, MAX_STORED_CHARS)];
+            int length = 0;
+            int read;
+            while (length < prefix.length && (read = reader.read(prefix, length, prefix.length - length)) != -1) {
+                length += read;
+            }
+            String storedBody = new String(prefix, 0, length);
+            // the rest of the body is parsed while it is written
+            metrics.record("parse", System.nanoTime() - start);
+            metrics.add("charsExtracted", length);
+            metrics.increment("filesStreamed");
+            String lang = identifyLanguage(storedBody, detector, fullPath);
+            PushbackReader body = new PushbackReader(reader, Math.max(1, length));
+            body.unread(prefix, 0, length);
+            logger.info("Adding file {} to index from a stream. Language is {}.", fullPath, lang.equals("pl") ? "Polish" : "English");
+            return createDocument(fullPath, name, storedBody, body, lang, state);
+        } catch (IOException | TikaException e) {
+            reader.close();
+            throw e;
+        }
+    }
 
-        if (storePath) {
-            Path sanitizedPath = Paths.get(sanitizeDirectoryPath(path));
-            Document doc = new Document();
-            logger.info("Adding path {} which is derived from {}", sanitizedPath.toString(), path);
-            Field pathField = new StringField("StoredPath", sanitizedPath.toString(), Field.Store.YES);
-            doc.add(pathField);
-            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND))) {
-                writer.addDocument(doc);
-            } catch (IOException e) {
-                logger.error("IOException in addAllToIndex: cannot access index");
-                throw e;
+    /**
+     * Detects the language on a growing prefix of the text, fed to the detector in chunks,
+     * and stops as soon as the result is reasonably certain or detectionSampleChars were used.
+     */
+    private String identifyLanguage(String text, LanguageDetector detector, String fullPath) throws TikaException {
+        long start = System.nanoTime();
+        int limit = Math.min(text.length(), detectionSampleChars);
+        int fed = 0;
+        int nextCheck = Math.min(limit, DETECTION_CHUNK_CHARS);
+        LanguageResult identification = LanguageResult.NULL;
+        detector.reset();
+        while (fed < limit) {
+            int end = Math.min(limit, fed + DETECTION_CHUNK_CHARS);
+            if (end < limit) {
+                // the detector separates chunks with a space, so do not cut words in half
+                int space = text.lastIndexOf(' ', end);
+                if (space > fed) {
+                    end = space + 1;
+                }
+            }
+            detector.addText(text.substring(fed, end));
+            fed = end;
+            if (fed >= nextCheck || fed == limit) {
+                identification = detector.detect();
+                if (identification.isReasonablyCertain()) {
+                    break;
+                }
+                // re-detection is over the whole sample, so check at doubling sizes
+                nextCheck = Math.min(limit, nextCheck * 2);
             }
         }
-        LanguageDetector detector = new OptimaizeLangDetector().loadModels();
-        Tika tika = new Tika();
-        Files.walkFileTree(Paths.get(path), new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        metrics.record("detect", System.nanoTime() - start);
+        metrics.add("detect.chars", fed);
+        if (!identification.isReasonablyCertain()) {
+            metrics.increment("failures.uncertainLanguage");
+            logger.warn("Not reasonably certain language (but probably {}): {}", identification.getLanguage(), fullPath);
+            throw new TikaException("not reasonably certain: maybe unknown language");
+        }
+        if (identification.isLanguage("pl")) {
+            return "pl";
+        } else if (identification.isLanguage("en")) {
+            return "en";
+        } else {
+            metrics.increment("failures.unsupportedLanguage");
+            logger.warn("Language not Polish or English - detected as {}: {}", identification.getLanguage(), fullPath);
+            throw new TikaException("unsupported language");
+        }
+    }
+
+    /**
+     * Writes a document made by extractDocument. Its streamed body is closed afterwards,
+     * also when writing fails, so that the parser behind it does not wait for a reader.
+     */
+    void writeDocument(Document doc) throws IOException {
+        String fullPath = doc.get("fullPath");
+        String lang = doc.getField("name-pl") != null ? "pl" : "en";
+        Term term = new Term("fullPath", fullPath);
+        long start = System.nanoTime();
+        try {
+            // includes analysis, and segment flushes when the RAM buffer fills up
+            shards.shard(lang).updateDocument(term, doc);
+            // an edited file may now be detected as the other language
+            for (Map.Entry<String, IndexWriter> shard : shards.shards().entrySet()) {
+                if (!shard.getKey().equals(lang)) {
+                    shard.getValue().deleteDocuments(term);
+                }
+            }
+        } catch (IOException e) {
+            metrics.increment("failures.write");
+            logger.warn("IndexWriter threw an exception at: {}", fullPath);
+            throw e;
+        } finally {
+            closeStreamedBody(doc);
+        }
+        metrics.record("write", System.nanoTime() - start);
+        metrics.increment("files");
+        changed(1);
+    }
+
+    /**
+     * Closes the streamed body of a document that is written or will not be written at all.
+     */
+    static void closeStreamedBody(Document doc) {
+        for (IndexableField field : doc.getFields()) {
+            Reader reader = field.readerValue();
+            if (reader != null) {
                 try {
-                    addSingleFileToIndex(file, detector, tika);
-                } catch (IOException ignore) {
-                    logger.info("Did not index file {} - exception occured", file);
-                    // don't index files that can't be read.
+                    reader.close();
+                } catch (IOException e) {
+                    logger.warn("Could not close streamed body of {}", doc.get("fullPath"));
                 }
-                return FileVisitResult.CONTINUE;
             }
-        });
+        }
     }
 
-    private void removeSingleFileFromIndex(Path file, IndexWriter writer) throws IOException {
-        logger.info("Removing single file {}", file);
-        writer.deleteDocuments(new Term("fullPath", sanitizeAnyPath(file.toString())));
+    /**
+     * Builds the document of a file. When streamedBody is given, body is only the stored prefix
+     * and the indexed text is read from streamedBody.
+     */
+    private static Document createDocument(String fullPath, String name, String body, Reader streamedBody, String lang, FileState state) {
+        Document doc = new Document();
+        Field pathField = new StringField("fullPath", fullPath, Field.Store.YES);
+        doc.add(pathField);
+        // lets result listings read the path without loading stored fields
+        doc.add(new SortedDocValuesField("fullPath", new BytesRef(fullPath)));
+        // every enclosing directory is a term, so a whole subtree can be deleted by one term
+        for (Path ancestor = Paths.get(fullPath).getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+            doc.add(new StringField("ancestorPath", ancestor.toString(), Field.Store.NO));
+        }
+        if (streamedBody == null) {
+            Field bodyField = new Field("body-" + lang, body, BODY_TYPE);
+            doc.add(bodyField);
+        } else {
+            doc.add(new StoredField("body-" + lang, body));
+            doc.add(new Field("body-" + lang, streamedBody, STREAMED_BODY_TYPE));
+        }
+        Field nameField = new TextField("name-" + lang, name, Field.Store.YES);
+        doc.add(nameField);
+        doc.add(new NumericDocValuesField("modified", state.modified));
+        doc.add(new NumericDocValuesField("size", state.size));
+        if (state.digest != null) {
+            doc.add(new BinaryDocValuesField("digest", new BytesRef(state.digest)));
+        }
+        return doc;
     }
 
-    void removeAllFromIndex(String path) throws IOException {
-        Path sanitizedPath = Paths.get(sanitizeDirectoryPath(path));
-        if (!getAllRegistered().contains(sanitizedPath.toString())) {
-            logger.error("Path has not been previously added: {}", path);
-            throw new IOException();
+    static String digest(Path path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Brings the index up to date with all registered roots without purging it.
+     * Only new or changed files are parsed again, and entries of files that are gone are deleted.
+     */
+    void updateIndex() throws IOException {
+        logger.info("Updating index");
+        update(getAllRegistered(), getIndexedFiles(""));
+    }
+
+    /**
+     * Same as updateIndex(), but limited to a single directory tree.
+     */
+    void updateTree(Path directory) throws IOException {
+        String root = sanitizeDirectoryPath(directory.toString());
+        logger.info("Updating tree {}", root);
+        update(Collections.singleton(root), getIndexedFiles(root + File.separator));
+    }
+
+    private void update(Collection<String> roots, Map<String, FileState> indexed) throws IOException {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        logger.info("There are {} indexed files under {}", indexed.size(), roots);
+        List<Path> existing = new ArrayList<>();
+        for (String root : roots) {
+            if (!Files.isDirectory(Paths.get(root))) {
+                logger.warn("Registered path no longer exists: {}", root);
+                continue;
+            }
+            existing.add(Paths.get(root));
+        }
+        newPipeline(extractionWorkers)
+                .run(existing, (file, attrs) -> needsExtraction(file, attrs, indexed, seen));
+        int removed = 0;
+        for (String fullPath : indexed.keySet()) {
+            if (!seen.contains(fullPath)) {
+                logger.info("Removing file {} which no longer exists", fullPath);
+                shards.shard(indexed.get(fullPath).lang).deleteDocuments(new Term("fullPath", fullPath));
+                changed(1);
+                removed++;
+            }
         }
-        logger.info("Removing path {} which is derived from {}", sanitizedPath.toString(), path);
-        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND))) {
-            writer.deleteDocuments(new Term("StoredPath", sanitizedPath.toString()));
+        logger.info("Index updated. {} files seen, {} removed.", seen.size(), removed);
+    }
+
+    private boolean needsExtraction(Path file, BasicFileAttributes attrs, Map<String, FileState> indexed, Set<String> seen) {
+        try {
+            String fullPath = sanitizeAnyPath(file.toString());
+            if (!seen.add(fullPath)) {
+                return false;
+            }
+            FileState state = indexed.get(fullPath);
+            if (state == null) {
+                return true;
+            }
+            if (attrs.isSymbolicLink()) {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+            if (state.sameAttributes(attrs)) {
+                return false;
+            }
+            Term term = new Term("fullPath", fullPath);
+            if (contentDigest && state.digest != null && state.digest.equals(digest(file))) {
+                logger.info("File {} was touched but its content is unchanged", fullPath);
+                IndexWriter writer = shards.shard(state.lang);
+                writer.updateNumericDocValue(term, "modified", attrs.lastModifiedTime().toMillis());
+                writer.updateNumericDocValue(term, "size", attrs.size());
+                changed(1);
+                return false;
+            }
+            // drop the stale entry now, so a file that can no longer be parsed does not linger
+            shards.shard(state.lang).deleteDocuments(term);
+            changed(1);
+            return true;
         } catch (IOException e) {
-            logger.error("IOException in removeAllFromIndex: cannot access index");
-            throw e;
+            logger.info("Could not compare file {} with index", file);
+            return true;
+        }
+    }
+
+    /**
+     * Reads path and modification metadata of every indexed file whose path starts with prefix
+     * from terms and doc values, without loading stored fields.
+     */
+    Map<String, FileState> getIndexedFiles(String prefix) throws IOException {
+        Map<String, FileState> result = new HashMap<>();
+        for (Map.Entry<String, IndexWriter> shard : shards.shards().entrySet()) {
+            readIndexedFiles(shard.getKey(), shard.getValue(), prefix, result);
         }
-        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND))) {
-            Files.walkFileTree(sanitizedPath, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    try {
-                        removeSingleFileFromIndex(file, writer);
-                    } catch (IOException ignore) {
-                        logger.info("Removing file {} from index unsuccessful", file);
-                        // don't stop deindexing if files can't be found or modified.
+        return result;
+    }
+
+    private static void readIndexedFiles(String lang, IndexWriter writer, String prefix, Map<String, FileState> result) throws IOException {
+        try (IndexReader reader = DirectoryReader.open(writer)) {
+            for (LeafReaderContext context : reader.leaves()) {
+                LeafReader leaf = context.reader();
+                Terms terms = leaf.terms("fullPath");
+                if (terms == null) {
+                    continue;
+                }
+                Bits liveDocs = leaf.getLiveDocs();
+                String[] pathsByDoc = new String[leaf.maxDoc()];
+                TermsEnum termsEnum = terms.iterator();
+                PostingsEnum postings = null;
+                BytesRef prefixBytes = new BytesRef(prefix);
+                if (termsEnum.seekCeil(prefixBytes) == TermsEnum.SeekStatus.END) {
+                    continue;
+                }
+                for (BytesRef term = termsEnum.term(); term != null && StringHelper.startsWith(term, prefixBytes); term = termsEnum.next()) {
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                        if (liveDocs == null || liveDocs.get(doc)) {
+                            pathsByDoc[doc] = term.utf8ToString();
+                        }
+                    }
+                }
+                NumericDocValues modified = DocValues.getNumeric(leaf, "modified");
+                NumericDocValues size = DocValues.getNumeric(leaf, "size");
+                BinaryDocValues digest = DocValues.getBinary(leaf, "digest");
+                for (int doc = 0; doc < pathsByDoc.length; doc++) {
+                    if (pathsByDoc[doc] == null) {
+                        continue;
                     }
-                    return FileVisitResult.CONTINUE;
+                    result.put(pathsByDoc[doc], new FileState(
+                            modified.advanceExact(doc) ? modified.longValue() : -1,
+                            size.advanceExact(doc) ? size.longValue() : -1,
+                            digest.advanceExact(doc) ? digest.binaryValue().utf8ToString() : null,
+                            lang));
                 }
-            });
+            }
         } catch (IOException e) {
-            logger.error("IOException in removeAllFromIndex: cannot access index (2)");
+            logger.error("IOException in getIndexedFiles: cannot access index");
             throw e;
         }
+    }
 
+    void addAllToIndex(String path, Boolean storePath) throws IOException {
+
+        if (storePath) {
+            registerRoot(path);
+        }
+        Path root = Paths.get(path);
+        if (Files.isRegularFile(root)) {
+            // a single file (e.g. from watch mode) is not worth spinning up the pipeline for
+            try {
+                addSingleFileToIndex(root);
+            } catch (IOException | IllegalArgumentException ignore) {
+                logger.info("Did not index file {} - exception occured", root);
+            }
+            return;
+        }
+        newPipeline(extractionWorkers).run(root);
     }
 
+    /**
+     * Registers a directory as a root without indexing anything under it.
+     */
+    void registerRoot(String path) throws IOException {
+        Path sanitizedPath = Paths.get(sanitizeDirectoryPath(path));
+        logger.info("Adding path {} which is derived from {}", sanitizedPath.toString(), path);
+        try {
+            // adding a root twice keeps a single registry entry
+            shards.roots().updateDocument(new Term("StoredPath", sanitizedPath.toString()), rootDocument(sanitizedPath.toString()));
+            changed(1);
+        } catch (IOException e) {
+            logger.error("IOException in addAllToIndex: cannot access index");
+            throw e;
+        }
+    }
+
+    private static Document rootDocument(String root) {
+        Document doc = new Document();
+        Field pathField = new StringField("StoredPath", root, Field.Store.YES);
+        doc.add(pathField);
+        return doc;
+    }
+
+    /**
+     * Indexes a batch of files and directories (e.g. settled watch mode events) in one pipeline run.
+     * Paths that cannot be indexed are skipped.
+     */
+    void indexPaths(Collection<Path> paths) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        logger.info("Indexing batch of {} paths", paths.size());
+        int workers = Math.min(extractionWorkers, paths.size());
+        boolean onlyFiles = paths.stream().allMatch(Files::isRegularFile);
+        newPipeline(onlyFiles ? workers : extractionWorkers)
+                .run(paths, (file, attrs) -> true);
+    }
+
+    /**
+     * Loads Tika and one set of language models up front, so that the first indexed file
+     * does not pay for them. Returns the time it took.
+     */
+    long warmUp() throws IOException {
+        long start = System.currentTimeMillis();
+        extractor();
+        detectors.release(detectors.borrow());
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("Cold start took {} ms", elapsed);
+        return elapsed;
+    }
+
+    /**
+     * The extractor is created on first use and kept until the handler is closed,
+     * or until one of its settings changes.
+     */
+    private synchronized TextExtractor extractor() {
+        if (extractor == null) {
+            long start = System.currentTimeMillis();
+            extractor = new TextExtractor(maxChars, parseTimeoutMillis, isolatedParsing, extractionWorkers);
+            logger.info("Loaded Tika in {} ms", System.currentTimeMillis() - start);
+        }
+        return extractor;
+    }
+
+    private synchronized void resetExtractor() {
+        if (extractor != null) {
+            try {
+                extractor.close();
+            } catch (IOException e) {
+                logger.warn("Could not close text extractor");
+            }
+            extractor = null;
+        }
+    }
+
+    private ExtractionPipeline newPipeline(int workers) {
+        return new ExtractionPipeline(this, workers, extractionQueueCapacity).setScanThreads(scanThreads);
+    }
+
+    /**
+     * Unregisters a root and removes everything indexed under it. Works from the index alone,
+     * so a root whose directory was already deleted can be removed as well. Documents are
+     * found by their ancestorPath terms, and by a fullPath prefix for documents indexed
+     * before those terms existed.
+     */
+    void removeAllFromIndex(String path) throws IOException {
+        Path unsanitized = Paths.get(path);
+        String root = Files.isDirectory(unsanitized)
+                ? sanitizeDirectoryPath(path)
+                : unsanitized.toAbsolutePath().normalize().toString();
+        if (!isRegistered(root)) {
+            logger.error("Path has not been previously added: {}", path);
+            throw new IOException();
+        }
+        logger.info("Removing path {} which is derived from {}", root, path);
+        try {
+            shards.roots().deleteDocuments(new Term("StoredPath", root));
+            for (IndexWriter writer : shards.shards().values()) {
+                writer.deleteDocuments(new Term("ancestorPath", root));
+                writer.deleteDocuments(new PrefixQuery(new Term("fullPath", directoryPrefix(root))));
+            }
+            changed(1);
+        } catch (IOException e) {
+            logger.error("IOException in removeAllFromIndex: cannot access index");
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a file, or everything indexed under a directory, with two term deletes
+     * and, like removeAllFromIndex, a fullPath prefix delete for older documents.
+     */
     void removeAllWithPath(String path) throws IOException {
         logger.info("Removing all with path {}", path);
-        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND))) {
-            writer.deleteDocuments(new WildcardQuery(new Term("fullPath", path + "*")));
+        for (IndexWriter writer : shards.shards().values()) {
+            writer.deleteDocuments(new Term("fullPath", path), new Term("ancestorPath", path));
+            writer.deleteDocuments(new PrefixQuery(new Term("fullPath", directoryPrefix(path))));
         }
+        changed(1);
     }
 
+    /**
+     * Lists registered roots by enumerating the terms of the StoredPath field, which holds
+     * exactly one term per root, instead of searching for and loading registry documents.
+     */
     Collection<String> getAllRegistered() throws IOException {
-        Collection<String> result = new HashSet<>();
-        try (IndexReader reader = DirectoryReader.open(dir)) {
-            Query query = new WildcardQuery(new Term("StoredPath", "*"));
-            IndexSearcher searcher = new IndexSearcher(reader);
-            TopDocs firstResults = searcher.search(query, 10);
-            if (firstResults.totalHits.value == 0) {
-                return result;
-            }
-            ScoreDoc[] finalResults = searcher.search(query, toIntExact(firstResults.totalHits.value)).scoreDocs;
-            logger.info("Getting all registered. There are {} results.", toIntExact(firstResults.totalHits.value));
-            for (ScoreDoc doc : finalResults) {
-                Document realDoc = searcher.doc(doc.doc);
-                result.add(realDoc.get("StoredPath"));
-            }
+        Collection<String> result;
+        try (IndexReader reader = DirectoryReader.open(shards.roots())) {
+            result = registeredRoots(reader);
         } catch (IOException e) {
             logger.error("IOException in getAllRegistered: cannot access index");
             throw e;
         }
+        logger.info("Getting all registered. There are {} results.", result.size());
         return result;
     }
 
+    private static Collection<String> registeredRoots(IndexReader reader) throws IOException {
+        Collection<String> result = new TreeSet<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms("StoredPath");
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                if (hasLiveDoc(postings, leaf.reader().getLiveDocs())) {
+                    result.add(term.utf8ToString());
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isRegistered(String root) throws IOException {
+        BytesRef term = new BytesRef(root);
+        try (IndexReader reader = DirectoryReader.open(shards.roots())) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Terms terms = leaf.reader().terms("StoredPath");
+                if (terms == null) {
+                    continue;
+                }
+                TermsEnum termsEnum = terms.iterator();
+                if (termsEnum.seekExact(term)
+                        && hasLiveDoc(termsEnum.postings(null, PostingsEnum.NONE), leaf.reader().getLiveDocs())) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("IOException in isRegistered: cannot access index");
+            throw e;
+        }
+        return false;
+    }
+
+    // terms of deleted registry documents stay in the index until their segment is merged
+    private static boolean hasLiveDoc(PostingsEnum postings, Bits liveDocs) throws IOException {
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     void purgeIndex() throws IOException {
-        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE))) {
-            writer.deleteAll();
+        try {
+            for (IndexWriter writer : shards.all()) {
+                writer.deleteAll();
+            }
+            setPendingUpdate(Collections.emptySet());
+            uncommitted.incrementAndGet();
+            commit();
         } catch (IOException e) {
-            logger.error("IOException in removeAllFromIndex: cannot access index");
+            logger.error("IOException in purgeIndex: cannot access index");
             throw e;
         }
     }
 
     @Override
     public void close() throws IOException {
-        dir.close();
+        committer.shutdownNow();
+        resetExtractor();
+        try {
+            commit();
+        } finally {
+            metrics.close();
+            try {
+                shards.close();
+            } finally {
+                analyzer.close();
+            }
+        }
     }
 }
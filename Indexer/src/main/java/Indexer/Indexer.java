@@ -4,53 +4,124 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
 
 public class Indexer {
     private static Logger logger = LoggerFactory.getLogger(Indexer.class);
     private static String savingDirectory = Paths.get(System.getProperty("user.home"), ".index").toString();
+    private static int commitEveryDocs = Integer.getInteger("indexer.commitDocs", IndexHandler.DEFAULT_COMMIT_EVERY_DOCS);
+    private static long commitIntervalMillis = Long.getLong("indexer.commitIntervalMs", IndexHandler.DEFAULT_COMMIT_INTERVAL_MILLIS);
+    private static Integer extractionWorkers = Integer.getInteger("indexer.workers");
+    private static Integer extractionQueueCapacity = Integer.getInteger("indexer.queueSize");
+    private static boolean contentDigest = Boolean.getBoolean("indexer.digest");
+    private static int scanThreads = Integer.getInteger("indexer.scanThreads", Runtime.getRuntime().availableProcessors());
+    private static boolean reconcile = Boolean.parseBoolean(System.getProperty("indexer.reconcile", "true"));
+    private static int maxChars = Integer.getInteger("indexer.maxChars", TextExtractor.DEFAULT_MAX_CHARS);
+    private static long parseTimeoutMillis = Long.getLong("indexer.parseTimeoutMs", TextExtractor.DEFAULT_TIMEOUT_MILLIS);
+    private static long streamThresholdBytes = Long.getLong("indexer.streamThresholdBytes", IndexHandler.DEFAULT_STREAM_THRESHOLD_BYTES);
+    private static int maxStreamedChars = Integer.getInteger("indexer.maxStreamedChars", 0);
+    private static boolean isolatedParsing = Boolean.getBoolean("indexer.isolateParsing");
+    private static int detectionSampleChars = Integer.getInteger("indexer.detectionSampleChars", IndexHandler.DEFAULT_DETECTION_SAMPLE_CHARS);
+    private static String metricsFile = System.getProperty("indexer.metricsFile", "logs/metrics_indexer.jsonl");
+    private static long metricsIntervalMillis = Long.getLong("indexer.metricsIntervalMs", 60_000);
+    private static String cacheDirectory = System.getProperty("indexer.cacheDir", "");
+    private static long cacheMaxBytes = Long.getLong("indexer.cacheMaxBytes", ExtractionCache.DEFAULT_MAX_BYTES);
+    private static long quietPeriodMillis = Long.getLong("indexer.quietPeriodMs", MonitorHandler.DEFAULT_QUIET_PERIOD_MILLIS);
 
     private static String usage = "java -jar " + "Indexer-1.0.0-jar-with-dependencies.jar"
-            + " [--purge] [--add DOCS_PATH] [--rm DOCS_PATH] [--list] [--reindex] "
-            + " No arguments: watch mode. Index is saved in " + Paths.get(System.getProperty("user.home"), ".index") + ".";
+            + " [--purge] [--add DOCS_PATH] [--rm DOCS_PATH] [--list] [--reindex] [--update] "
+            + " No arguments: watch mode. Index is saved in " + Paths.get(System.getProperty("user.home"), ".index") + "."
+            + " Commits every -Dindexer.commitDocs changes (default " + IndexHandler.DEFAULT_COMMIT_EVERY_DOCS + ")"
+            + " or -Dindexer.commitIntervalMs milliseconds (default " + IndexHandler.DEFAULT_COMMIT_INTERVAL_MILLIS + ")."
+            + " Parsing threads: -Dindexer.workers (default: number of cores), queue size: -Dindexer.queueSize."
+            + " --update reindexes only new or changed files; -Dindexer.digest=true also compares content digests."
+            + " Watch mode waits -Dindexer.quietPeriodMs (default " + MonitorHandler.DEFAULT_QUIET_PERIOD_MILLIS + ") after the last change to a file before indexing it."
+            + " On start it reconciles the index with the file system (-Dindexer.reconcile=false to skip),"
+            + " listing directories with -Dindexer.scanThreads threads."
+            + " Extraction is capped at -Dindexer.maxChars characters (default " + TextExtractor.DEFAULT_MAX_CHARS + ")"
+            + " and -Dindexer.parseTimeoutMs per file (default " + TextExtractor.DEFAULT_TIMEOUT_MILLIS + ");"
+            + " files over -Dindexer.streamThresholdBytes are indexed from a stream, capped at -Dindexer.maxStreamedChars instead (default: no cap),"
+            + " -Dindexer.isolateParsing=true parses in separate, killable JVMs."
+            + " Language is detected on at most -Dindexer.detectionSampleChars characters"
+            + " (default " + IndexHandler.DEFAULT_DETECTION_SAMPLE_CHARS + ")."
+            + " Stage metrics are exposed over JMX (Indexer:type=IndexHandler) and appended every"
+            + " -Dindexer.metricsIntervalMs to -Dindexer.metricsFile (default logs/metrics_indexer.jsonl, empty to disable)."
+            + " Setting -Dindexer.cacheDir caches extracted text by content digest there (default: no cache),"
+            + " up to -Dindexer.cacheMaxBytes (default " + ExtractionCache.DEFAULT_MAX_BYTES + ");"
+            + " with the cache on, every file is read once more to compute its digest."
+            + " While watch mode runs, the other commands are executed by it instead of a new process.";
 
     public static void main(String[] args) {
+        Path daemonFile = Paths.get(savingDirectory + ".daemon");
+        if (args.length > 0) {
+            if (!isCommand(args)) {
+                System.out.println("Usage :" + usage);
+                return;
+            }
+            try {
+                // a running watch mode holds the index lock, so let it do the work
+                Boolean forwarded = DaemonClient.send(daemonFile, absolutePaths(args), System.out);
+                if (forwarded != null) {
+                    if (!forwarded) {
+                        System.exit(1);
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                logger.error("FATAL: Could not talk to the running indexer");
+                System.exit(1);
+            }
+        }
 
-        try (IndexHandler handler = new IndexHandler(savingDirectory)) {
+        try (IndexHandler handler = new IndexHandler(savingDirectory, commitEveryDocs, commitIntervalMillis)) {
+            if (extractionWorkers != null) {
+                handler.setExtractionWorkers(extractionWorkers);
+            }
+            if (extractionQueueCapacity != null) {
+                handler.setExtractionQueueCapacity(extractionQueueCapacity);
+            }
+            handler.setContentDigest(contentDigest);
+            handler.setScanThreads(scanThreads);
+            handler.setMaxChars(maxChars);
+            handler.setParseTimeout(parseTimeoutMillis);
+            handler.setStreamThreshold(streamThresholdBytes);
+            handler.setMaxStreamedChars(maxStreamedChars);
+            handler.setIsolatedParsing(isolatedParsing);
+            handler.setDetectionSampleChars(detectionSampleChars);
+            if (cacheMaxBytes > 0 && !cacheDirectory.isEmpty()) {
+                handler.setExtractionCache(Paths.get(cacheDirectory), cacheMaxBytes);
+            }
+            if (!metricsFile.isEmpty()) {
+                handler.getMetrics().dumpTo(Paths.get(metricsFile), metricsIntervalMillis);
+            }
+            if (args.length == 0 || !(args[0].equals("--purge") || args[0].equals("--reindex"))) {
+                // files of a migrated index that were left to extract again
+                handler.updatePending();
+            }
             if (args.length == 0) {
                 logger.info("Entering interactive (watch) mode");
                 try {
-                    new MonitorHandler(handler).monitor();
+                    // load Tika and language models before the first event arrives
+                    handler.warmUp();
+                    MonitorHandler monitorHandler = new MonitorHandler(handler, quietPeriodMillis);
+                    try (IndexerDaemon daemon = new IndexerDaemon(handler, monitorHandler, daemonFile)) {
+                        monitorHandler.setExclusiveRunner(daemon::runExclusively);
+                        // accept commands first, so that clients queue up instead of opening the locked index
+                        daemon.start();
+                        if (reconcile) {
+                            daemon.runExclusively(monitorHandler::reconcile);
+                        }
+                        monitorHandler.monitor();
+                    }
                 } catch (IOException e) {
                     logger.error("FATAL: Error creating or opetating MonitorHandler");
                     System.exit(1);
                 }
-
-            } else if (args[0].equals("--purge") && args.length == 1) {
-                logger.info("Purging index...");
-                handler.purgeIndex();
-            } else if (args[0].equals("--add") && args.length == 2) {
-                logger.info("Adding path {}...", args[1]);
-                handler.addAllToIndex(args[1], true);
-            } else if (args[0].equals("--rm") && args.length == 2) {
-                logger.info("Removing path {}...", args[1]);
-                handler.removeAllFromIndex(args[1]);
-            } else if (args[0].equals("--list") && args.length == 1) {
-                logger.info("Listing watched directories...");
-                Collection<String> listing = handler.getAllRegistered();
-                for (String path : listing) {
-                    System.out.println(path);
-                }
-            } else if (args[0].equals("--reindex") && args.length == 1) {
-                logger.info("Reindexing watched directiories...");
-                Collection<String> listing = handler.getAllRegistered();
-                handler.purgeIndex();
-                for (String path : listing) {
-                    handler.addAllToIndex(path, true);
-                }
             } else {
-                System.out.println("Usage :" + usage);
+                runCommand(handler, args, System.out);
             }
         } catch (IOException e) {
             logger.error("FATAL: IndexHandler exception: IOException while manipulating index");
@@ -58,5 +129,64 @@ public class Indexer {
         }
     }
 
+    private static boolean isCommand(String[] args) {
+        switch (args[0]) {
+            case "--add":
+            case "--rm":
+                return args.length == 2;
+            case "--purge":
+            case "--list":
+            case "--reindex":
+            case "--update":
+                return args.length == 1;
+            default:
+                return false;
+        }
+    }
+
+    // the daemon runs in another working directory
+    private static String[] absolutePaths(String[] args) {
+        String[] result = args.clone();
+        if (result.length == 2) {
+            result[1] = Paths.get(result[1]).toAbsolutePath().normalize().toString();
+        }
+        return result;
+    }
 
+    /**
+     * Runs a command line command against the handler, writing its output to out.
+     * Returns false if args are not a valid command.
+     */
+    static boolean runCommand(IndexHandler handler, String[] args, PrintStream out) throws IOException {
+        if (!isCommand(args)) {
+            return false;
+        }
+        if (args[0].equals("--purge")) {
+            logger.info("Purging index...");
+            handler.purgeIndex();
+        } else if (args[0].equals("--add")) {
+            logger.info("Adding path {}...", args[1]);
+            handler.addAllToIndex(args[1], true);
+        } else if (args[0].equals("--rm")) {
+            logger.info("Removing path {}...", args[1]);
+            handler.removeAllFromIndex(args[1]);
+        } else if (args[0].equals("--list")) {
+            logger.info("Listing watched directories...");
+            Collection<String> listing = handler.getAllRegistered();
+            for (String path : listing) {
+                out.println(path);
+            }
+        } else if (args[0].equals("--reindex")) {
+            logger.info("Reindexing watched directiories...");
+            Collection<String> listing = handler.getAllRegistered();
+            handler.purgeIndex();
+            for (String path : listing) {
+                handler.addAllToIndex(path, true);
+            }
+        } else if (args[0].equals("--update")) {
+            logger.info("Updating changed files in watched directiories...");
+            handler.updateIndex();
+        }
+        return true;
+    }
 }
@@ -0,0 +1,197 @@
+package Indexer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Lets a running watch mode execute --add, --rm, --list and the other commands for
+ * command line clients, so that all writes go through its warm writer.
+ * Listens on a loopback port, which is written together with a random token to a file
+ * only the owner can read. A request is the token, then one argument per line, then an empty line.
+ * The reply is the command's output with every line prefixed by ". ", then OK or ERROR.
+ * While the command waits or runs, WAIT is sent every few seconds, so clients can tell
+ * a long command from a daemon that hangs.
+ */
+class IndexerDaemon implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(IndexerDaemon.class);
+    static final String OUTPUT_PREFIX = ". ";
+    static final String HEARTBEAT = "WAIT";
+    static final long HEARTBEAT_MILLIS = 5_000;
+    // a client has this long to send its request
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_CONNECTIONS = 8;
+
+    private final IndexHandler handler;
+    private final MonitorHandler monitor;
+    private final Path daemonFile;
+    private final String token;
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final ScheduledExecutorService heartbeats;
+
+    IndexerDaemon(IndexHandler handler, MonitorHandler monitor, Path daemonFile) throws IOException {
+        this.handler = handler;
+        this.monitor = monitor;
+        this.daemonFile = daemonFile;
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        this.token = hex.toString();
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        // one more thread for accepting connections
+        this.connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS + 1, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "indexer-daemon");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "indexer-daemon-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() throws IOException {
+        writeDaemonFile();
+        connections.execute(this::accept);
+        logger.info("Accepting commands on port {}", server.getLocalPort());
+    }
+
+    private void writeDaemonFile() throws IOException {
+        Path temp = daemonFile.resolveSibling(daemonFile.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        try {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(temp);
+        }
+        Files.write(temp, (server.getLocalPort() + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, daemonFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        daemonFile.toFile().deleteOnExit();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                try {
+                    connections.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Rejected connection, {} clients are connected already", MAX_CONNECTIONS);
+                    reject(socket);
+                }
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Could not accept connection", e);
+            }
+        }
+    }
+
+    private static void reject(Socket socket) {
+        try (Socket connection = socket) {
+            connection.getOutputStream().write("ERROR busy\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Connection failed: {}", e.getMessage());
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        } catch (SocketException e) {
+            logger.warn("Connection failed: {}", e.getMessage());
+            return;
+        }
+        try (Socket connection = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(connection.getOutputStream(), true, "UTF-8")) {
+            String received = in.readLine();
+            if (received == null || !MessageDigest.isEqual(received.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+                logger.warn("Rejected connection with a wrong token");
+                out.println("ERROR unauthorized");
+                return;
+            }
+            List<String> args = new ArrayList<>();
+            for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+                args.add(line);
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> out.println(HEARTBEAT),
+                    HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            String status;
+            try {
+                status = execute(args.toArray(new String[0]), new PrintStream(output, true, "UTF-8"));
+            } finally {
+                heartbeat.cancel(false);
+            }
+            BufferedReader lines = new BufferedReader(new StringReader(output.toString("UTF-8")));
+            for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                out.println(OUTPUT_PREFIX + line);
+            }
+            out.println(status);
+        } catch (IOException e) {
+            logger.warn("Connection failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs task with commands held back until it finishes, e.g. the reconciliation at startup.
+     */
+    synchronized void runExclusively(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Commands run one at a time, like separate command line calls would,
+     * and are committed before the client is answered.
+     */
+    private synchronized String execute(String[] args, PrintStream out) {
+        long start = System.currentTimeMillis();
+        try {
+            if (!Indexer.runCommand(handler, args, out)) {
+                return "ERROR usage";
+            }
+            if (args[0].equals("--add")) {
+                monitor.watch(Paths.get(args[1]).toFile().getCanonicalFile().toPath());
+            } else if (args[0].equals("--rm")) {
+                // watches are registered under the canonical paths of roots
+                monitor.unwatch(Paths.get(args[1]).toFile().getCanonicalFile().toPath());
+            } else if (args[0].equals("--purge")) {
+                monitor.unwatchAll();
+            }
+            handler.commit();
+            logger.info("Executed {} in {} ms", String.join(" ", args), System.currentTimeMillis() - start);
+            return "OK";
+        } catch (IOException e) {
+            logger.error("Command {} failed", String.join(" ", args));
+            return "ERROR " + (e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        heartbeats.shutdownNow();
+        connections.shutdownNow();
+        Files.deleteIfExists(daemonFile);
+    }
+}
@@ -6,22 +6,44 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
 class MonitorHandler {
     private static Logger logger = LoggerFactory.getLogger(MonitorHandler.class);
+    static final long DEFAULT_QUIET_PERIOD_MILLIS = 1000;
+
     private final WatchService watcher;
     private final IndexHandler handler;
     private final Map<WatchKey, Path> keys;
+    private final long quietPeriodMillis;
+    // events are collected here until their path has been quiet for quietPeriodMillis
+    private final Map<Path, Pending> pending;
+    // runs event handling, so that it does not interleave with daemon commands
+    private volatile Executor exclusive = Runnable::run;
+
+    private enum Action {INDEX, DELETE, RESCAN}
+
+    private static class Pending {
+        Action action;
+        long lastEvent;
+    }
 
     MonitorHandler(IndexHandler handler) throws IOException {
+        this(handler, DEFAULT_QUIET_PERIOD_MILLIS);
+    }
+
+    MonitorHandler(IndexHandler handler, long quietPeriodMillis) throws IOException {
         this.handler = handler;
+        this.quietPeriodMillis = Math.max(0, quietPeriodMillis);
         this.watcher = FileSystems.getDefault().newWatchService();
-        this.keys = new HashMap<>();
+        // also updated by the daemon when roots are added or removed
+        this.keys = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
         Collection<String> listings = handler.getAllRegistered();
         for (String path : listings) {
             logger.info("Registering tree rooted at {}", path);
@@ -29,45 +51,210 @@ class MonitorHandler {
         }
     }
 
+    /**
+     * Brings the index in line with changes made while the indexer was not running.
+     * Watches are already registered at this point, so nothing that happens during the scan is lost.
+     */
+    void reconcile() {
+        long start = System.currentTimeMillis();
+        logger.info("Reconciling index with file system");
+        try {
+            handler.updateIndex();
+            logger.info("Reconciliation finished in {} ms", System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            logger.error("Reconciliation failed, index may be stale until next --update");
+        }
+    }
+
+    /**
+     * Events are collected and flushed through exclusive, e.g. the daemon's lock, so that a
+     * removed root cannot be indexed again by a flush that was already running.
+     */
+    void setExclusiveRunner(Executor exclusive) {
+        this.exclusive = exclusive;
+    }
+
     void monitor() {
         for (; ; ) {
             WatchKey key;
             try {
-                key = watcher.take();
+                if (pending.isEmpty()) {
+                    key = watcher.take();
+                } else {
+                    key = watcher.poll(quietPeriodMillis, TimeUnit.MILLISECONDS);
+                }
             } catch (InterruptedException e) {
                 return;
             }
-            for (WatchEvent<?> event : key.pollEvents()) {
-                if (event.kind() == ENTRY_CREATE) {
+            WatchKey polled = key;
+            exclusive.execute(() -> {
+                if (polled != null) {
+                    collectEvents(polled);
+                }
+                flushSettled();
+            });
+        }
+    }
+
+    private void collectEvents(WatchKey key) {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            // e.g. a root removed after the event was queued
+            logger.info("Dropping events from unwatched key {}", key);
+            key.cancel();
+            return;
+        }
+        collectEvents(dir, key.pollEvents());
+        if (!key.reset()) {
+            logger.info("unregister: {}", dir);
+            keys.remove(key);
+        }
+    }
+
+    void collectEvents(Path dir, List<WatchEvent<?>> events) {
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == OVERFLOW) {
+                logger.warn("Events were lost in {}, directory will be rescanned", dir);
+                schedule(dir, Action.RESCAN);
+                continue;
+            }
+            Path eventPath = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE) {
+                if (Files.isDirectory(eventPath, LinkOption.NOFOLLOW_LINKS)) {
+                    // watch new directories right away, so that events inside them are not missed
                     try {
-                        Path eventPath = Paths.get(handler.sanitizeAnyPath(keys.get(key).toString()), event.context().toString());
                         registerAllUnder(eventPath.toString());
-                        handler.addAllToIndex(eventPath.toString(), false);
                     } catch (IOException e) {
-                        logger.error("Error processing ENTRY_CREATE at {}", Paths.get(keys.get(key).toString(), event.context().toString()));
+                        logger.error("Error processing ENTRY_CREATE at {}", eventPath);
                     }
                 }
-                if (event.kind() == ENTRY_DELETE) {
+                schedule(eventPath, Action.INDEX);
+            } else if (event.kind() == ENTRY_DELETE) {
+                schedule(eventPath, Action.DELETE);
+            } else if (event.kind() == ENTRY_MODIFY) {
+                // a modified directory only means its entries changed, and those have events of their own
+                if (!Files.isDirectory(eventPath, LinkOption.NOFOLLOW_LINKS)) {
+                    schedule(eventPath, Action.INDEX);
+                }
+            }
+            logger.info("Queued event {} with context {} and count {} from key {}", event.kind(), event.context(), event.count(), dir);
+        }
+    }
+
+    private void schedule(Path path, Action action) {
+        Pending entry = pending.computeIfAbsent(path, p -> new Pending());
+        // a rescan already covers whatever else happens to the directory
+        if (entry.action != Action.RESCAN) {
+            entry.action = action;
+        }
+        entry.lastEvent = System.currentTimeMillis();
+    }
+
+    void flushSettled() {
+        long now = System.currentTimeMillis();
+        Map<Path, Action> settled = new HashMap<>();
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Pending> entry = it.next();
+            if (now - entry.getValue().lastEvent >= quietPeriodMillis) {
+                settled.put(entry.getKey(), entry.getValue().action);
+                it.remove();
+            }
+        }
+        if (!settled.isEmpty()) {
+            flush(settled);
+        }
+    }
+
+    private void flush(Map<Path, Action> batch) {
+        logger.info("Flushing {} settled paths", batch.size());
+        List<Path> toIndex = new ArrayList<>();
+        Set<Path> covered = new HashSet<>();
+        for (Map.Entry<Path, Action> entry : batch.entrySet()) {
+            if (entry.getValue() != Action.DELETE) {
+                covered.add(entry.getKey());
+            }
+        }
+        for (Map.Entry<Path, Action> entry : batch.entrySet()) {
+            Path path = entry.getKey();
+            switch (entry.getValue()) {
+                case DELETE:
                     try {
-                        Path eventPath = Paths.get(handler.sanitizeAnyPath(keys.get(key).toString()), event.context().toString());
-                        handler.removeAllWithPath(eventPath.toString());
+                        handler.removeAllWithPath(path.toString());
                     } catch (IOException e) {
-                        logger.error("Error processing ENTRY_DELETE at {}", Paths.get(keys.get(key).toString(), event.context().toString()));
+                        logger.error("Error processing ENTRY_DELETE at {}", path);
                     }
-                }
-                if (event.kind() == ENTRY_MODIFY) {
+                    break;
+                case RESCAN:
                     try {
-                        Path eventPath = Paths.get(handler.sanitizeAnyPath(keys.get(key).toString()), event.context().toString());
-                        handler.addAllToIndex(eventPath.toString(), false);
+                        registerAllUnder(path.toString());
+                        handler.updateTree(path);
                     } catch (IOException e) {
-                        logger.error("Error processing ENTRY_MODIFY at {}", Paths.get(keys.get(key).toString(), event.context().toString()));
+                        logger.error("Error rescanning {}", path);
                     }
-                }
-                logger.info("Processed event {} with context {} and count {} from key {}", event.kind(), event.context(), event.count(), keys.get(key));
+                    break;
+                case INDEX:
+                    if (!hasAncestorIn(path, covered) && Files.exists(path)) {
+                        toIndex.add(path);
+                    }
+                    break;
+            }
+        }
+        try {
+            handler.indexPaths(toIndex);
+        } catch (IOException e) {
+            logger.error("Error indexing batch of {} paths", toIndex.size());
+        }
+    }
+
+    /**
+     * Starts watching a newly added root.
+     */
+    void watch(Path root) throws IOException {
+        if (Files.isDirectory(root)) {
+            registerAllUnder(root.toString());
+        }
+    }
+
+    /**
+     * Stops watching a removed root and everything under it, and drops its unflushed events.
+     */
+    void unwatch(Path root) {
+        Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WatchKey, Path> entry = it.next();
+            if (entry.getValue().startsWith(root)) {
+                logger.info("unregister: {}", entry.getValue());
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+        pending.keySet().removeIf(path -> path.startsWith(root));
+    }
+
+    /**
+     * Stops watching everything, after the index was purged.
+     */
+    void unwatchAll() {
+        for (WatchKey key : keys.keySet()) {
+            key.cancel();
+        }
+        keys.clear();
+        pending.clear();
+        logger.info("Unregistered all directories");
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
 
-                key.reset();
+    private static boolean hasAncestorIn(Path path, Set<Path> paths) {
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (paths.contains(parent)) {
+                return true;
             }
         }
+        return false;
     }
 
     private void registerAllUnder(String path) throws IOException {
@@ -0,0 +1,140 @@
+package Indexer;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Writers of the index directory's parts: registered roots in ROOTS, and the documents of
+ * each language in a shard of their own, so that a query for one language never reads
+ * the postings and stored fields of the other. A language shard is created with its first document.
+ */
+class ShardRegistry implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(ShardRegistry.class);
+    static final String ROOTS = "roots";
+    static final List<String> LANGUAGES = Collections.unmodifiableList(Arrays.asList("pl", "en"));
+
+    private final Path base;
+    private final Analyzer analyzer;
+    private final Supplier<MergeScheduler> mergeSchedulers;
+    private final Map<String, Directory> directories = new ConcurrentHashMap<>();
+    private final Map<String, IndexWriter> writers = new ConcurrentHashMap<>();
+
+    ShardRegistry(Path base, Analyzer analyzer, Supplier<MergeScheduler> mergeSchedulers) throws IOException {
+        this.base = base;
+        this.analyzer = analyzer;
+        this.mergeSchedulers = mergeSchedulers;
+        try {
+            open(ROOTS);
+            for (String lang : LANGUAGES) {
+                if (Files.isDirectory(base.resolve(lang))) {
+                    open(lang);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    IndexWriter roots() {
+        return writers.get(ROOTS);
+    }
+
+    /**
+     * Writer of the shard for lang, opened or created on first use.
+     */
+    IndexWriter shard(String lang) throws IOException {
+        IndexWriter writer = writers.get(lang);
+        if (writer != null) {
+            return writer;
+        }
+        if (!LANGUAGES.contains(lang)) {
+            throw new IllegalArgumentException("No shard for language " + lang);
+        }
+        synchronized (this) {
+            writer = writers.get(lang);
+            return writer != null ? writer : open(lang);
+        }
+    }
+
+    /**
+     * Writers of the language shards that exist so far, by language.
+     */
+    Map<String, IndexWriter> shards() {
+        Map<String, IndexWriter> shards = new LinkedHashMap<>();
+        for (String lang : LANGUAGES) {
+            IndexWriter writer = writers.get(lang);
+            if (writer != null) {
+                shards.put(lang, writer);
+            }
+        }
+        return shards;
+    }
+
+    Collection<IndexWriter> all() {
+        List<IndexWriter> all = new ArrayList<>(shards().values());
+        all.add(roots());
+        return all;
+    }
+
+    private IndexWriter open(String name) throws IOException {
+        Path path = base.resolve(name);
+        Directory dir;
+        try {
+            Files.createDirectories(path);
+            dir = FSDirectory.open(path);
+        } catch (IOException e) {
+            logger.error("FSDirectory could not open path: {}", path);
+            throw e;
+        }
+        IndexWriter writer;
+        try {
+            writer = new IndexWriter(dir, new IndexWriterConfig(analyzer)
+                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                    .setMergeScheduler(mergeSchedulers.get()));
+        } catch (IOException e) {
+            logger.error("IndexWriter could not be opened at: {}", path);
+            dir.close();
+            throw e;
+        }
+        directories.put(name, dir);
+        writers.put(name, writer);
+        logger.info("Opened shard {}", path);
+        return writer;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Map.Entry<String, IndexWriter> writer : writers.entrySet()) {
+            try {
+                writer.getValue().close();
+            } catch (IOException e) {
+                logger.error("Could not close shard {}", writer.getKey());
+                failure = e;
+            }
+        }
+        writers.clear();
+        for (Directory dir : directories.values()) {
+            dir.close();
+        }
+        directories.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package Indexer;
+
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Extracts text with Tika as a stream of characters. Extraction is capped at maxChars
+ * and parsing has to finish within timeoutMillis, so a single huge or pathological file can neither
+ * exhaust the heap nor hang the indexer. Time the parser spends waiting for a slow reader does not
+ * count against the timeout. With isolation enabled, parsers run in separate JVMs that are killed
+ * when they time out.
+ */
+class TextExtractor implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(TextExtractor.class);
+    static final int DEFAULT_MAX_CHARS = 100_000;
+    static final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int QUEUED_CHUNKS = 16;
+    // how often a parser waiting for room in the queue checks whether its reader was closed
+    private static final long OFFER_POLL_MILLIS = 100;
+    private static final char[] END_OF_TEXT = new char[0];
+
+    private final Parser parser;
+    private final int maxChars;
+    private final long timeoutMillis;
+    private final ExecutorService parsers;
+
+    TextExtractor(int maxChars, long timeoutMillis, boolean isolated, int poolSize) {
+        this.maxChars = maxChars > 0 ? maxChars : Integer.MAX_VALUE;
+        this.timeoutMillis = timeoutMillis;
+        if (isolated) {
+            ForkParser forkParser = new ForkParser(TextExtractor.class.getClassLoader(), new AutoDetectParser());
+            forkParser.setPoolSize(poolSize);
+            forkParser.setServerParseTimeoutMillis(timeoutMillis);
+            forkParser.setJavaCommand(Arrays.asList("java", "-Xmx512m"));
+            this.parser = forkParser;
+        } else {
+            this.parser = new AutoDetectParser();
+        }
+        this.parsers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "tika-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a reader that parses the file in the background once it is first read.
+     * It yields text as it is extracted and throws an IOException once the file has taken
+     * longer than the timeout or the parser failed.
+     */
+    Reader open(Path path) {
+        return open(path, maxChars);
+    }
+
+    /**
+     * As above, with the text capped at maxChars instead of the extractor's limit, 0 meaning no cap.
+     */
+    Reader open(Path path, int maxChars) {
+        return new ExtractedReader(path, maxChars > 0 ? maxChars : Integer.MAX_VALUE);
+    }
+
+    private static boolean isLimitReached(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof LimitReachedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts at most maxChars characters into memory.
+     */
+    String extract(Path path) throws IOException {
+        try (Reader reader = open(path)) {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[CHUNK_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parsers.shutdownNow();
+        if (parser instanceof ForkParser) {
+            ((ForkParser) parser).close();
+        }
+    }
+
+    static class ExtractionTimeoutException extends IOException {
+        ExtractionTimeoutException() {
+            super("Extraction timed out");
+        }
+    }
+
+    private static class LimitReachedException extends SAXException {
+        LimitReachedException() {
+            super("Extracted text limit reached");
+        }
+    }
+
+    private class ExtractedReader extends Reader {
+        private final BlockingQueue<char[]> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        private final Path path;
+        private final int maxChars;
+        private long deadline;
+        // while the parser waits for room in the queue, its deadline is paused
+        private long pausedAt;
+        // wrapping readers hold this reader's own monitor while reading
+        private final Object deadlineLock = new Object();
+        private volatile Exception failure;
+        private Future<?> task;
+        private volatile boolean closed = false;
+        private char[] chunk = new char[0];
+        private int position = 0;
+        private boolean ended = false;
+
+        ExtractedReader(Path path, int maxChars) {
+            this.path = path;
+            this.maxChars = maxChars;
+        }
+
+        private void start() {
+            synchronized (deadlineLock) {
+                deadline = System.currentTimeMillis() + timeoutMillis;
+            }
+            task = parsers.submit(() -> {
+                Metadata metadata = new Metadata();
+                try (InputStream in = TikaInputStream.get(path, metadata)) {
+                    ParseContext context = new ParseContext();
+                    // the context is sent to forked parsers, which cannot serialize a ForkParser
+                    if (!(parser instanceof ForkParser)) {
+                        context.set(Parser.class, parser);
+                    }
+                    parser.parse(in, new BodyContentHandler(new ChunkHandler()), metadata, context);
+                    finish(null);
+                } catch (Exception e) {
+                    finish(isLimitReached(e) ? null : e);
+                }
+            });
+        }
+
+        void finish(Exception e) {
+            failure = e;
+            try {
+                offer(END_OF_TEXT);
+            } catch (SAXException ignore) {
+                // reader is gone or timed out, nobody is waiting for the end
+            }
+        }
+
+        void offer(char[] data) throws SAXException {
+            if (remaining() <= 0) {
+                throw new SAXException("Extraction timed out");
+            }
+            if (chunks.offer(data)) {
+                return;
+            }
+            // the reader is behind, e.g. a streamed document waiting to be written
+            synchronized (deadlineLock) {
+                pausedAt = System.currentTimeMillis();
+            }
+            try {
+                // a reader that is closed, e.g. of a document that was never written, will not take it
+                while (!chunks.offer(data, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        throw new SAXException("Reader closed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SAXException("Extraction interrupted");
+            } finally {
+                synchronized (deadlineLock) {
+                    deadline += System.currentTimeMillis() - pausedAt;
+                    pausedAt = 0;
+                }
+            }
+        }
+
+        private long remaining() {
+            synchronized (deadlineLock) {
+                long now = System.currentTimeMillis();
+                return deadline + (pausedAt != 0 ? now - pausedAt : 0) - now;
+            }
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (closed) {
+                throw new IOException("Reader closed");
+            }
+            if (task == null) {
+                start();
+            }
+            while (position == chunk.length) {
+                if (ended) {
+                    return -1;
+                }
+                char[] next;
+                try {
+                    long remaining = remaining();
+                    next = remaining > 0 ? chunks.poll(remaining, TimeUnit.MILLISECONDS) : chunks.poll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for extracted text");
+                }
+                if (next == null) {
+                    close();
+                    logger.warn("Extraction of {} did not finish within {} ms", path, timeoutMillis);
+                    throw new ExtractionTimeoutException();
+                }
+                if (next == END_OF_TEXT) {
+                    ended = true;
+                    if (failure != null) {
+                        throw new IOException(failure);
+                    }
+                }
+                chunk = next;
+                position = 0;
+            }
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, cbuf, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            if (task != null) {
+                task.cancel(true);
+            }
+            chunks.clear();
+        }
+
+        private class ChunkHandler extends DefaultHandler {
+            private final StringBuilder buffer = new StringBuilder();
+            private int written = 0;
+
+            @Override
+            public void characters(char[] ch, int start, int length) throws SAXException {
+                int allowed = Math.min(length, maxChars - written);
+                buffer.append(ch, start, allowed);
+                written += allowed;
+                if (buffer.length() >= CHUNK_SIZE || allowed < length) {
+                    flush();
+                }
+                if (allowed < length) {
+                    throw new LimitReachedException();
+                }
+            }
+
+            @Override
+            public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+                characters(ch, start, length);
+            }
+
+            @Override
+            public void endDocument() throws SAXException {
+                flush();
+            }
+
+            private void flush() throws SAXException {
+                if (buffer.length() > 0) {
+                    char[] data = new char[buffer.length()];
+                    buffer.getChars(0, data.length, data, 0);
+                    buffer.setLength(0);
+                    offer(data);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package Indexer;
+
+import Common.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ExtractionCacheTest {
+    private static final String DIGEST = "0123456789abcdef";
+
+    @TempDir
+    Path temp;
+
+    private final Metrics metrics = new Metrics("test");
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        threads.shutdownNow();
+        metrics.close();
+    }
+
+    @Test
+    void keysDifferBySettings() {
+        assertThat(ExtractionCache.key(DIGEST, 100, 16)).isNotEqualTo(ExtractionCache.key(DIGEST, 100, 32))
+                .isNotEqualTo(ExtractionCache.key(DIGEST, 200, 16));
+    }
+
+    @Test
+    void keepsEntriesOfOneContentWithDifferentSettingsApart() throws IOException {
+        ExtractionCache cache = new ExtractionCache(temp, ExtractionCache.DEFAULT_MAX_BYTES, metrics);
+        cache.put(ExtractionCache.key(DIGEST, 100, 16), new ExtractionCache.Entry("en", "short"));
+        cache.put(ExtractionCache.key(DIGEST, 200, 16), new ExtractionCache.Entry("pl", "longer"));
+
+        assertThat(cache.get(ExtractionCache.key(DIGEST, 100, 16)).body).isEqualTo("short");
+        assertThat(cache.get(ExtractionCache.key(DIGEST, 200, 16)).lang).isEqualTo("pl");
+        assertThat(cache.get(ExtractionCache.key(DIGEST, 100, 32))).isNull();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntries() throws Exception {
+        long entrySize = sizeOf(text(1));
+        ExtractionCache cache = new ExtractionCache(temp.resolve("cache"), entrySize * 5 / 2, metrics);
+        cache.put("aa-used", new ExtractionCache.Entry("en", text(1)));
+        Thread.sleep(20);
+        cache.put("bb-unused", new ExtractionCache.Entry("en", text(2)));
+        Thread.sleep(20);
+        assertThat(cache.get("aa-used")).isNotNull();
+        Thread.sleep(20);
+
+        cache.put("cc-new", new ExtractionCache.Entry("en", text(3)));
+
+        assertThat(cache.get("bb-unused")).isNull();
+        assertThat(cache.get("aa-used")).isNotNull();
+        assertThat(cache.get("cc-new")).isNotNull();
+        assertThat(metrics.count("cache.evictions")).isEqualTo(1);
+    }
+
+    @Test
+    void extractsConcurrentCopiesOnce() throws Exception {
+        ExtractionCache cache = new ExtractionCache(temp, ExtractionCache.DEFAULT_MAX_BYTES, metrics);
+        AtomicInteger extractions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExtractionCache.Extraction slow = () -> {
+            extractions.incrementAndGet();
+            started.countDown();
+            await(release);
+            return new ExtractionCache.Entry("en", "body");
+        };
+
+        Future<ExtractionCache.Entry> first = threads.submit(() -> cache.get("aa-key", slow));
+        started.await();
+        Future<ExtractionCache.Entry> second = threads.submit(() -> cache.get("aa-key", slow));
+        while (metrics.count("cache.waits") == 0) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS).body).isEqualTo("body");
+        assertThat(second.get(5, TimeUnit.SECONDS).body).isEqualTo("body");
+        assertThat(extractions).hasValue(1);
+    }
+
+    @Test
+    void doesNotHoldUpOtherContent() throws Exception {
+        ExtractionCache cache = new ExtractionCache(temp, ExtractionCache.DEFAULT_MAX_BYTES, metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<ExtractionCache.Entry> blocked = threads.submit(() -> cache.get("aa-key", () -> {
+            await(release);
+            return new ExtractionCache.Entry("en", "first");
+        }));
+
+        // answered while the other extraction is still running
+        Future<ExtractionCache.Entry> other = threads.submit(() -> cache.get("bb-key",
+                () -> new ExtractionCache.Entry("pl", "second")));
+        assertThat(other.get(5, TimeUnit.SECONDS).body).isEqualTo("second");
+        assertThat(blocked.isDone()).isFalse();
+        release.countDown();
+        assertThat(blocked.get(5, TimeUnit.SECONDS).body).isEqualTo("first");
+    }
+
+    @Test
+    void failedExtractionIsNotCached() throws Exception {
+        ExtractionCache cache = new ExtractionCache(temp, ExtractionCache.DEFAULT_MAX_BYTES, metrics);
+
+        assertThatThrownBy(() -> cache.get("aa-key", () -> {
+            throw new IOException("unreadable");
+        })).isInstanceOf(IOException.class).hasMessage("unreadable");
+
+        assertThat(cache.get("aa-key", () -> new ExtractionCache.Entry("en", "body")).body).isEqualTo("body");
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private long sizeOf(String body) throws IOException {
+        Path probe = temp.resolve("probe");
+        new ExtractionCache(probe, ExtractionCache.DEFAULT_MAX_BYTES, metrics).put("aa-probe", new ExtractionCache.Entry("en", body));
+        try (Stream<Path> files = Files.walk(probe)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    // random text, so that entries of different seeds compress to about the same size
+    private static String text(int seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
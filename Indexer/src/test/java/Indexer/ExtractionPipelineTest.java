@@ -0,0 +1,161 @@
+package Indexer;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ExtractionPipelineTest {
+    @TempDir
+    Path temp;
+
+    private Path tree;
+    private FakeHandler handler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tree = Files.createDirectories(temp.resolve("tree"));
+        for (int i = 0; i < 30; i++) {
+            Path dir = Files.createDirectories(tree.resolve("dir" + i % 3));
+            Files.write(dir.resolve("file" + i + ".txt"), ("file " + i).getBytes());
+        }
+        handler = new FakeHandler(temp.resolve("index").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        handler.close();
+    }
+
+    @Test
+    void writesEveryFileOnce() throws IOException {
+        new ExtractionPipeline(handler, 4, 2).run(tree);
+
+        assertThat(handler.written).hasSize(30).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void writesEveryFileOnceWithParallelScan() throws IOException {
+        new ExtractionPipeline(handler, 4, 2).setScanThreads(3).run(tree);
+
+        assertThat(handler.written).hasSize(30).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void skipsFilesThatCannotBeExtractedOrWritten() throws IOException {
+        handler.failExtraction = path -> path.endsWith("file1.txt");
+        handler.failWrite = path -> path.endsWith("file2.txt");
+
+        new ExtractionPipeline(handler, 2, 2).run(tree);
+
+        assertThat(handler.written).hasSize(28)
+                .noneMatch(path -> path.endsWith("file1.txt") || path.endsWith("file2.txt"));
+    }
+
+    @Test
+    void failsWhenAWorkerStops() {
+        handler.crashExtraction = path -> path.endsWith("file5.txt");
+
+        assertThatThrownBy(() -> new ExtractionPipeline(handler, 2, 2).run(tree))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Extraction worker stopped");
+    }
+
+    @Test
+    void closesStreamedBodiesOfDocumentsNotWrittenAfterAbort() throws Exception {
+        handler.abortWrite = new AtomicBoolean(true);
+
+        assertThatThrownBy(() -> new ExtractionPipeline(handler, 4, 2).run(tree))
+                .isInstanceOf(IllegalStateException.class);
+
+        // workers stop shortly after the abort, each with at most one document in hand
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline && !handler.allBodiesClosed()) {
+            Thread.sleep(10);
+        }
+        assertThat(handler.bodies).isNotEmpty();
+        assertThat(handler.allBodiesClosed()).isTrue();
+    }
+
+    /**
+     * Extracts a document with a streamed body for every file, without Tika.
+     */
+    private static class FakeHandler extends IndexHandler {
+        final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        final List<ClosingReader> bodies = Collections.synchronizedList(new ArrayList<>());
+        volatile Predicate<Path> failExtraction = path -> false;
+        volatile Predicate<Path> crashExtraction = path -> false;
+        volatile Predicate<String> failWrite = path -> false;
+        volatile AtomicBoolean abortWrite = new AtomicBoolean(false);
+
+        FakeHandler(String directory) throws IOException {
+            super(directory);
+        }
+
+        @Override
+        Document extractDocument(Path path) throws IOException {
+            if (failExtraction.test(path)) {
+                throw new IOException();
+            }
+            if (crashExtraction.test(path)) {
+                throw new AssertionError("worker crash");
+            }
+            ClosingReader body = new ClosingReader(path.toString());
+            bodies.add(body);
+            Document doc = new Document();
+            doc.add(new StringField("fullPath", path.toString(), Field.Store.YES));
+            doc.add(new TextField("body-en", body));
+            return doc;
+        }
+
+        @Override
+        void writeDocument(Document doc) throws IOException {
+            try {
+                if (abortWrite.getAndSet(false)) {
+                    throw new IllegalStateException("abort");
+                }
+                if (failWrite.test(doc.get("fullPath"))) {
+                    throw new IOException();
+                }
+                written.add(doc.get("fullPath"));
+            } finally {
+                closeStreamedBody(doc);
+            }
+        }
+
+        boolean allBodiesClosed() {
+            synchronized (bodies) {
+                return bodies.stream().allMatch(body -> body.closed);
+            }
+        }
+    }
+
+    private static class ClosingReader extends StringReader {
+        volatile boolean closed = false;
+
+        ClosingReader(String text) {
+            super(text);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            super.close();
+        }
+    }
+}
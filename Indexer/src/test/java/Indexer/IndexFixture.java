@@ -0,0 +1,70 @@
+package Indexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * The IndexHandler operations behind the command line and watch mode, for the benchmarks,
+ * which get it from the Indexer test jar. Changes are committed before returning, except for
+ * single files, which are committed in batches like in watch mode.
+ */
+public class IndexFixture implements Closeable {
+    private final IndexHandler handler;
+
+    public IndexFixture(Path index) throws IOException {
+        handler = new IndexHandler(index.toString());
+    }
+
+    /**
+     * Indexes corpus as a registered root of a new index.
+     */
+    public static void build(Path corpus, Path index) throws IOException {
+        try (IndexFixture fixture = new IndexFixture(index)) {
+            fixture.addRoot(corpus);
+        }
+    }
+
+    /**
+     * Loads Tika and the language models, so that they are not part of the first measurement.
+     */
+    public void warmUp() throws IOException {
+        handler.warmUp();
+    }
+
+    /**
+     * Indexes a single file, as watch mode does when the file changes.
+     */
+    public void addFile(Path file) throws IOException {
+        handler.addAllToIndex(file.toString(), false);
+    }
+
+    /**
+     * As --add.
+     */
+    public void addRoot(Path root) throws IOException {
+        handler.addAllToIndex(root.toString(), true);
+        handler.commit();
+    }
+
+    /**
+     * As --rm, including the registry delete.
+     */
+    public void removeRoot(Path root) throws IOException {
+        handler.removeAllFromIndex(root.toString());
+        handler.commit();
+    }
+
+    /**
+     * As --list.
+     */
+    public Collection<String> listRoots() throws IOException {
+        return handler.getAllRegistered();
+    }
+
+    @Override
+    public void close() throws IOException {
+        handler.close();
+    }
+}
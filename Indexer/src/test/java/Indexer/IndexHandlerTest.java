@@ -0,0 +1,245 @@
+package Indexer;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IndexHandlerTest {
+    private static final String ENGLISH = "The quick brown fox jumps over the lazy dog while the farmer"
+            + " watches from the window of his house. Every morning he walks to the market to sell"
+            + " fresh vegetables and bread, and in the evening he reads books about history and travel.";
+    private static final String POLISH = "Szybki brązowy lis przeskakuje nad leniwym psem, a rolnik patrzy"
+            + " z okna swojego domu. Każdego ranka chodzi na targ, żeby sprzedać świeże warzywa i chleb,"
+            + " a wieczorem czyta książki o historii i podróżach.";
+
+    @TempDir
+    Path temp;
+
+    private Path root;
+    private CountingHandler handler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Files.createDirectories(temp.resolve("root")).toRealPath();
+        handler = open();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        handler.close();
+    }
+
+    private CountingHandler open() throws IOException {
+        CountingHandler opened = new CountingHandler(temp.resolve("index").toString());
+        opened.setExtractionWorkers(2);
+        return opened;
+    }
+
+    private Path write(Path file, String text) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    void updateExtractsOnlyNewAndModifiedFiles() throws IOException {
+        Path same = write(root.resolve("same.txt"), ENGLISH);
+        Path modified = write(root.resolve("sub/modified.txt"), ENGLISH);
+        handler.addAllToIndex(root.toString(), true);
+        assertThat(handler.extracted).hasSize(2);
+        handler.extracted.clear();
+
+        write(modified, ENGLISH + " He also likes to cook.");
+        Files.setLastModifiedTime(modified, FileTime.fromMillis(Files.getLastModifiedTime(same).toMillis() + 10_000));
+        Path added = write(root.resolve("sub/added.txt"), ENGLISH);
+        handler.updateIndex();
+
+        assertThat(handler.extracted).containsExactlyInAnyOrder(modified, added);
+        assertThat(handler.getIndexedFiles("")).containsOnlyKeys(same.toString(), modified.toString(), added.toString());
+    }
+
+    @Test
+    void updateRemovesDeletedFiles() throws IOException {
+        Path kept = write(root.resolve("kept.txt"), ENGLISH);
+        Path deleted = write(root.resolve("sub/deleted.txt"), ENGLISH);
+        handler.addAllToIndex(root.toString(), true);
+        handler.extracted.clear();
+
+        Files.delete(deleted);
+        handler.updateIndex();
+
+        assertThat(handler.extracted).isEmpty();
+        assertThat(handler.getIndexedFiles("")).containsOnlyKeys(kept.toString());
+    }
+
+    @Test
+    void touchedFileWithSameDigestIsNotExtractedAgain() throws IOException {
+        handler.setContentDigest(true);
+        Path touched = write(root.resolve("touched.txt"), ENGLISH);
+        handler.addAllToIndex(root.toString(), true);
+        handler.extracted.clear();
+
+        long later = Files.getLastModifiedTime(touched).toMillis() + 10_000;
+        Files.setLastModifiedTime(touched, FileTime.fromMillis(later));
+        handler.updateIndex();
+
+        assertThat(handler.extracted).isEmpty();
+        assertThat(handler.getIndexedFiles("").get(touched.toString()).modified).isEqualTo(later);
+
+        // the next update compares with the new modification time
+        handler.updateIndex();
+        assertThat(handler.extracted).isEmpty();
+    }
+
+    @Test
+    void listsRootsWithoutRemovedOnes() throws IOException {
+        Path first = Files.createDirectories(temp.resolve("first")).toRealPath();
+        Path second = Files.createDirectories(temp.resolve("second")).toRealPath();
+        Path third = Files.createDirectories(temp.resolve("third")).toRealPath();
+        for (Path dir : new Path[]{first, second, third}) {
+            write(dir.resolve("file.txt"), ENGLISH);
+            handler.addAllToIndex(dir.toString(), true);
+        }
+        handler.commit();
+
+        handler.removeAllFromIndex(second.toString());
+        assertThat(handler.getAllRegistered()).containsExactlyInAnyOrder(first.toString(), third.toString());
+
+        // the removed root's term is still in the terms dictionary until a merge
+        handler.commit();
+        handler.addAllToIndex(first.toString(), true);
+        assertThat(handler.getAllRegistered()).containsExactlyInAnyOrder(first.toString(), third.toString());
+        assertThat(handler.getIndexedFiles("")).containsOnlyKeys(
+                first.resolve("file.txt").toString(), third.resolve("file.txt").toString());
+    }
+
+    @Test
+    void removesRootWhoseDirectoryIsGone() throws IOException {
+        Path gone = write(temp.resolve("gone/dir/file.txt"), ENGLISH).getParent().getParent().toRealPath();
+        handler.addAllToIndex(gone.toString(), true);
+        Files.delete(gone.resolve("dir/file.txt"));
+        Files.delete(gone.resolve("dir"));
+        Files.delete(gone);
+
+        handler.removeAllFromIndex(gone.toString());
+
+        assertThat(handler.getAllRegistered()).isEmpty();
+        assertThat(handler.getIndexedFiles("")).isEmpty();
+    }
+
+    @Test
+    void movesFileToTheShardOfItsNewLanguage() throws IOException {
+        Path file = write(root.resolve("file.txt"), ENGLISH);
+        handler.addAllToIndex(root.toString(), true);
+        assertThat(handler.getIndexedFiles("").get(file.toString()).lang).isEqualTo("en");
+
+        write(file, POLISH);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+        handler.updateIndex();
+
+        Map<String, FileState> indexed = handler.getIndexedFiles("");
+        assertThat(indexed).containsOnlyKeys(file.toString());
+        assertThat(indexed.get(file.toString()).lang).isEqualTo("pl");
+    }
+
+    @Test
+    void migratesSingleIndexAndExtractsOldDocumentsAgain() throws IOException {
+        handler.close();
+        Path current = write(root.resolve("current.txt"), ENGLISH);
+        Path withoutFields = write(root.resolve("sub/fields.txt"), ENGLISH);
+        Path withoutOffsets = write(root.resolve("sub/offsets.txt"), POLISH);
+        Path index = temp.resolve("index");
+        try (FSDirectory directory = FSDirectory.open(index);
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            writer.deleteAll();
+            writer.addDocument(root(root.toString()));
+            writer.addDocument(document(current, "en", true, true));
+            // written by older versions, without doc values and ancestors, or without offsets
+            writer.addDocument(document(withoutFields, "en", true, false));
+            writer.addDocument(document(withoutOffsets, "pl", false, false));
+            writer.commit();
+        }
+
+        handler = open();
+        assertThat(handler.getAllRegistered()).containsExactly(root.toString());
+        assertThat(handler.getIndexedFiles("")).containsOnlyKeys(current.toString());
+        assertThat(handler.pendingUpdate()).containsExactly(root.toString());
+        try (FSDirectory legacy = FSDirectory.open(index)) {
+            assertThat(DirectoryReader.indexExists(legacy)).isFalse();
+        }
+
+        handler.updatePending();
+
+        assertThat(handler.extracted).containsExactlyInAnyOrder(withoutFields, withoutOffsets);
+        Map<String, FileState> indexed = handler.getIndexedFiles("");
+        assertThat(indexed).containsOnlyKeys(current.toString(), withoutFields.toString(), withoutOffsets.toString());
+        assertThat(indexed.get(withoutOffsets.toString()).lang).isEqualTo("pl");
+        assertThat(handler.pendingUpdate()).isEmpty();
+        handler.close();
+        handler = open();
+        assertThat(handler.pendingUpdate()).isEmpty();
+    }
+
+    private static Document root(String path) {
+        Document doc = new Document();
+        doc.add(new StringField("StoredPath", path, Field.Store.YES));
+        return doc;
+    }
+
+    private static Document document(Path file, String lang, boolean offsets, boolean current) throws IOException {
+        FieldType body = new FieldType(TextField.TYPE_STORED);
+        if (offsets) {
+            body.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        }
+        Document doc = new Document();
+        doc.add(new StringField("fullPath", file.toString(), Field.Store.YES));
+        doc.add(new Field("body-" + lang, new String(Files.readAllBytes(file), StandardCharsets.UTF_8), body));
+        doc.add(new TextField("name-" + lang, file.getFileName().toString(), Field.Store.YES));
+        if (current) {
+            doc.add(new SortedDocValuesField("fullPath", new BytesRef(file.toString())));
+            for (Path ancestor = file.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+                doc.add(new StringField("ancestorPath", ancestor.toString(), Field.Store.NO));
+            }
+            doc.add(new NumericDocValuesField("modified", Files.getLastModifiedTime(file).toMillis()));
+            doc.add(new NumericDocValuesField("size", Files.size(file)));
+        }
+        return doc;
+    }
+
+    /**
+     * Records which files are parsed.
+     */
+    private static class CountingHandler extends IndexHandler {
+        final List<Path> extracted = new CopyOnWriteArrayList<>();
+
+        CountingHandler(String directory) throws IOException {
+            super(directory);
+        }
+
+        @Override
+        Document extractDocument(Path path) throws IOException {
+            extracted.add(path);
+            return super.extractDocument(path);
+        }
+    }
+}
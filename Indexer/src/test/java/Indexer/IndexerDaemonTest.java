@@ -0,0 +1,145 @@
+package Indexer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IndexerDaemonTest {
+    @TempDir
+    Path temp;
+
+    private Path root;
+    private Path daemonFile;
+    private IndexHandler handler;
+    private MonitorHandler monitor;
+    private IndexerDaemon daemon;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Files.createDirectories(temp.resolve("root")).toRealPath();
+        daemonFile = temp.resolve("index.daemon");
+        handler = new IndexHandler(temp.resolve("index").toString());
+        handler.registerRoot(root.toString());
+        monitor = new MonitorHandler(handler, 0);
+        daemon = new IndexerDaemon(handler, monitor, daemonFile);
+        daemon.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        daemon.close();
+        handler.close();
+    }
+
+    @Test
+    void runsCommandsOfClientsWithTheToken() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        Boolean succeeded = DaemonClient.send(daemonFile, new String[]{"--list"}, new PrintStream(output, true, "UTF-8"));
+
+        assertThat(succeeded).isTrue();
+        assertThat(output.toString("UTF-8").trim()).isEqualTo(root.toString());
+    }
+
+    @Test
+    void prefixesOutputAndEndsWithStatus() throws IOException {
+        List<String> token = Files.readAllLines(daemonFile, StandardCharsets.UTF_8);
+
+        assertThat(request(token.get(1), "--list")).containsExactly(IndexerDaemon.OUTPUT_PREFIX + root, "OK");
+        assertThat(request(token.get(1), "--list", "extra")).containsExactly("ERROR usage");
+    }
+
+    @Test
+    void rejectsClientsWithoutTheToken() throws IOException {
+        assertThat(request("not the token", "--purge")).containsExactly("ERROR unauthorized");
+        assertThat(handler.getAllRegistered()).containsExactly(root.toString());
+    }
+
+    @Test
+    void reportsNoDaemonWithoutAFile() throws IOException {
+        daemon.close();
+
+        assertThat(DaemonClient.send(daemonFile, new String[]{"--list"}, System.out)).isNull();
+        Files.write(daemonFile, "garbage\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(DaemonClient.send(daemonFile, new String[]{"--list"}, System.out)).isNull();
+    }
+
+    @Test
+    void removingARootDropsItsPendingEvents() throws IOException {
+        Files.write(root.resolve("file.txt"), new byte[1]);
+        monitor.collectEvents(root, Collections.singletonList(new Modified(Paths.get("file.txt"))));
+        assertThat(monitor.pendingCount()).isEqualTo(1);
+
+        assertThat(DaemonClient.send(daemonFile, new String[]{"--rm", root.toString()}, System.out)).isTrue();
+
+        assertThat(monitor.pendingCount()).isZero();
+        assertThat(handler.getAllRegistered()).isEmpty();
+    }
+
+    @Test
+    void purgingDropsPendingEvents() throws IOException {
+        Files.write(root.resolve("file.txt"), new byte[1]);
+        monitor.collectEvents(root, Collections.singletonList(new Modified(Paths.get("file.txt"))));
+
+        assertThat(DaemonClient.send(daemonFile, new String[]{"--purge"}, System.out)).isTrue();
+
+        assertThat(monitor.pendingCount()).isZero();
+    }
+
+    private List<String> request(String token, String... args) throws IOException {
+        int port = Integer.parseInt(Files.readAllLines(daemonFile, StandardCharsets.UTF_8).get(0));
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            out.println(token);
+            for (String arg : args) {
+                out.println(arg);
+            }
+            out.println();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            List<String> reply = new ArrayList<>();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                reply.add(line);
+            }
+            return reply;
+        }
+    }
+
+    private static class Modified implements WatchEvent<Path> {
+        private final Path context;
+
+        Modified(Path context) {
+            this.context = context;
+        }
+
+        @Override
+        public Kind<Path> kind() {
+            return ENTRY_MODIFY;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public Path context() {
+            return context;
+        }
+    }
+}
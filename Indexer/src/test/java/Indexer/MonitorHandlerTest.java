@@ -0,0 +1,156 @@
+package Indexer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MonitorHandlerTest {
+    @TempDir
+    Path temp;
+
+    private Path dir;
+    private RecordingHandler handler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createDirectories(temp.resolve("watched")).toRealPath();
+        handler = new RecordingHandler(temp.resolve("index").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        handler.close();
+    }
+
+    @Test
+    void coalescesEventsOfAPathIntoItsLastAction() throws IOException {
+        MonitorHandler monitor = new MonitorHandler(handler, 0);
+        Files.write(dir.resolve("kept.txt"), new byte[1]);
+
+        monitor.collectEvents(dir, Arrays.asList(
+                event(ENTRY_CREATE, "kept.txt"), event(ENTRY_MODIFY, "kept.txt"), event(ENTRY_MODIFY, "kept.txt"),
+                event(ENTRY_CREATE, "gone.txt"), event(ENTRY_MODIFY, "gone.txt"), event(ENTRY_DELETE, "gone.txt")));
+        monitor.flushSettled();
+
+        assertThat(handler.indexed).containsExactly(dir.resolve("kept.txt"));
+        assertThat(handler.removed).containsExactly(dir.resolve("gone.txt").toString());
+        assertThat(monitor.pendingCount()).isZero();
+    }
+
+    @Test
+    void waitsUntilAPathIsQuiet() throws IOException {
+        MonitorHandler monitor = new MonitorHandler(handler, 60_000);
+        Files.write(dir.resolve("busy.txt"), new byte[1]);
+
+        monitor.collectEvents(dir, Collections.singletonList(event(ENTRY_MODIFY, "busy.txt")));
+        monitor.flushSettled();
+
+        assertThat(handler.indexed).isEmpty();
+        assertThat(monitor.pendingCount()).isEqualTo(1);
+    }
+
+    @Test
+    void rescansDirectoryAfterOverflow() throws IOException {
+        MonitorHandler monitor = new MonitorHandler(handler, 0);
+        Path sub = Files.createDirectories(dir.resolve("sub"));
+        Files.write(sub.resolve("file.txt"), new byte[1]);
+        Files.write(dir.resolve("other.txt"), new byte[1]);
+
+        monitor.collectEvents(sub, Collections.singletonList(event(ENTRY_MODIFY, "file.txt")));
+        monitor.collectEvents(sub, Collections.singletonList(overflow()));
+        // a rescan already covers later events of the directory
+        monitor.collectEvents(sub, Collections.singletonList(event(ENTRY_MODIFY, "file.txt")));
+        monitor.collectEvents(dir, Collections.singletonList(event(ENTRY_MODIFY, "other.txt")));
+        monitor.flushSettled();
+
+        assertThat(handler.rescanned).containsExactly(sub);
+        assertThat(handler.indexed).containsExactly(dir.resolve("other.txt"));
+    }
+
+    @Test
+    void dropsPendingEventsOfUnwatchedRoot() throws IOException {
+        MonitorHandler monitor = new MonitorHandler(handler, 0);
+        Path removed = Files.createDirectories(dir.resolve("removed"));
+        Files.write(removed.resolve("file.txt"), new byte[1]);
+        Files.write(dir.resolve("kept.txt"), new byte[1]);
+
+        monitor.collectEvents(removed, Collections.singletonList(event(ENTRY_MODIFY, "file.txt")));
+        monitor.collectEvents(dir, Collections.singletonList(event(ENTRY_MODIFY, "kept.txt")));
+        monitor.unwatch(removed);
+        monitor.flushSettled();
+
+        assertThat(handler.indexed).containsExactly(dir.resolve("kept.txt"));
+    }
+
+    private static WatchEvent<?> event(WatchEvent.Kind<Path> kind, String name) {
+        return new FakeEvent<>(kind, Paths.get(name));
+    }
+
+    private static WatchEvent<?> overflow() {
+        return new FakeEvent<>(OVERFLOW, null);
+    }
+
+    private static class FakeEvent<T> implements WatchEvent<T> {
+        private final Kind<T> kind;
+        private final T context;
+
+        FakeEvent(Kind<T> kind, T context) {
+            this.kind = kind;
+            this.context = context;
+        }
+
+        @Override
+        public Kind<T> kind() {
+            return kind;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public T context() {
+            return context;
+        }
+    }
+
+    /**
+     * Records what the monitor asks for instead of indexing.
+     */
+    private static class RecordingHandler extends IndexHandler {
+        final List<Path> indexed = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        final List<Path> rescanned = new ArrayList<>();
+
+        RecordingHandler(String directory) throws IOException {
+            super(directory);
+        }
+
+        @Override
+        void indexPaths(Collection<Path> paths) {
+            indexed.addAll(paths);
+        }
+
+        @Override
+        void removeAllWithPath(String path) {
+            removed.add(path);
+        }
+
+        @Override
+        void updateTree(Path directory) {
+            rescanned.add(directory);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package Searcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load-test client for the search server. Each thread sends the given queries in turn,
+ * one at a time, for the configured duration, then throughput and latency percentiles are printed.
+ * Usage: java -cp Searcher-1.0.0-jar-with-dependencies.jar Searcher.LoadTest QUERY...
+ * with -Dload.url, -Dload.threads, -Dload.seconds, -Dload.type, -Dload.lang and -Dload.details.
+ */
+public class LoadTest {
+    private static String url = System.getProperty("load.url", "http://127.0.0.1:" + SearchServer.DEFAULT_PORT);
+    private static int threads = Integer.getInteger("load.threads", 8);
+    private static int seconds = Integer.getInteger("load.seconds", 30);
+    private static String type = System.getProperty("load.type", "term");
+    private static String lang = System.getProperty("load.lang", "en");
+    private static String details = System.getProperty("load.details", "off");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java -cp Searcher-1.0.0-jar-with-dependencies.jar Searcher.LoadTest QUERY... "
+                    + "[-Dload.url=" + url + "] [-Dload.threads=8] [-Dload.seconds=30] [-Dload.type=term/phrase/fuzzy]"
+                    + " [-Dload.lang=en/pl/all] [-Dload.details=on/off]");
+            return;
+        }
+        List<String> urls = new ArrayList<>();
+        for (String query : args) {
+            urls.add(url + "/search?type=" + type + "&lang=" + lang + "&details=" + details
+                    + "&q=" + URLEncoder.encode(query, "UTF-8"));
+        }
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            results.add(pool.submit(() -> {
+                List<Long> latencies = new ArrayList<>();
+                for (int i = offset; System.nanoTime() < deadline; i++) {
+                    long start = System.nanoTime();
+                    int status = get(urls.get(i % urls.size()));
+                    if (status == 200) {
+                        latencies.add(System.nanoTime() - start);
+                    } else if (status == 503) {
+                        rejected.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+                return latencies;
+            }));
+        }
+        List<Long> all = new ArrayList<>();
+        for (Future<List<Long>> result : results) {
+            all.addAll(result.get());
+        }
+        pool.shutdown();
+        long[] sorted = all.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf("threads=%d seconds=%d ok=%d rejected=%d failed=%d%n",
+                threads, seconds, sorted.length, rejected.get(), failed.get());
+        System.out.printf("qps=%.1f%n", sorted.length / (double) seconds);
+        if (sorted.length > 0) {
+            System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(sorted.length * fraction) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static int get(String address) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(address).openConnection();
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                // read fully so the connection can be reused
+                byte[] buffer = new byte[8192];
+                while (body.read(buffer) != -1) {
+                }
+                body.close();
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
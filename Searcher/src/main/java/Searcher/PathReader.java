@@ -0,0 +1,67 @@
+package Searcher;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads only the fullPath of hits, so listings do not decompress stored bodies.
+ * Uses the fullPath doc values written by the Indexer, and falls back to a stored field
+ * visitor that stops at fullPath for documents indexed without them.
+ */
+class PathReader {
+
+    private PathReader() {
+    }
+
+    static String[] read(IndexSearcher searcher, ScoreDoc[] hits) throws IOException {
+        String[] paths = new String[hits.length];
+        Integer[] order = new Integer[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            order[i] = i;
+        }
+        // doc values can only be advanced forward, so visit hits in doc id order
+        Arrays.sort(order, Comparator.comparingInt(i -> hits[i].doc));
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = null;
+        SortedDocValues values = null;
+        for (int i : order) {
+            int doc = hits[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                values = leaf.reader().getSortedDocValues("fullPath");
+            }
+            if (values != null && values.advanceExact(doc - leaf.docBase)) {
+                paths[i] = values.binaryValue().utf8ToString();
+            } else {
+                PathVisitor visitor = new PathVisitor();
+                searcher.doc(doc, visitor);
+                paths[i] = visitor.path;
+            }
+        }
+        return paths;
+    }
+
+    private static class PathVisitor extends StoredFieldVisitor {
+        String path;
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (path != null) {
+                return Status.STOP;
+            }
+            return fieldInfo.name.equals("fullPath") ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, byte[] value) {
+            path = new String(value, StandardCharsets.UTF_8);
+        }
+    }
+}
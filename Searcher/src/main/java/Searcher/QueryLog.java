@@ -0,0 +1,250 @@
+package Searcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queries run by users, appended to a file as "type lang query" lines, so that the next start
+ * can warm up on them. Only the last maxEntries queries are kept: the file is rewritten
+ * with them whenever it has grown by as many again.
+ * Queries are handed to a background writer, so logging never makes a query wait for the disk;
+ * when the writer falls behind by QUEUED_ENTRIES queries, further ones are dropped.
+ */
+class QueryLog implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(QueryLog.class);
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+    private static final int QUEUED_ENTRIES = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+    private static final Entry END_OF_LOG = new Entry("", "", "");
+    static final List<String> TYPES = Collections.unmodifiableList(Arrays.asList("term", "phrase", "fuzzy", "prefix"));
+    static final List<String> LANGUAGES = Collections.unmodifiableList(Arrays.asList("en", "pl", "all"));
+
+    private final Path file;
+    private final int maxEntries;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUED_ENTRIES);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean closed;
+    // written by the writer thread and closed by close(), guarded by this
+    private BufferedWriter writer;
+    private int appended;
+
+    static class Entry {
+        final String type;
+        final String lang;
+        final String line;
+
+        Entry(String type, String lang, String line) {
+            this.type = type;
+            this.lang = lang;
+            this.line = line;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) other;
+            return type.equals(entry.type) && lang.equals(entry.lang) && line.equals(entry.line);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, lang, line);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + lang + " " + line;
+        }
+    }
+
+    QueryLog(Path file, int maxEntries) throws IOException {
+        this.file = file;
+        this.maxEntries = Math.max(1, maxEntries);
+        if (Files.exists(file)) {
+            for (Entry entry : read(file)) {
+                remember(entry);
+            }
+        }
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            rewrite();
+        } catch (IOException e) {
+            logger.error("Query log cannot be written: {}", file);
+            throw e;
+        }
+        writerThread = new Thread(this::writeQueued, "searcher-query-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("Opened query log {} holding {} queries", file, entries.size());
+    }
+
+    /**
+     * Entries of a file of "type lang query" lines. Blank lines, lines starting with #
+     * and lines with an unknown type or language are skipped.
+     */
+    static List<Entry> read(Path file) throws IOException {
+        List<Entry> read = new ArrayList<>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.error("Queries could not be read from {}", file);
+            throw e;
+        }
+        for (String text : lines) {
+            if (text.trim().isEmpty() || text.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = text.split(" ", 3);
+            if (tokens.length < 3 || !TYPES.contains(tokens[0]) || !LANGUAGES.contains(tokens[1]) || tokens[2].trim().isEmpty()) {
+                logger.warn("Skipping incorrect query line in {}: {}", file, text);
+                continue;
+            }
+            read.add(new Entry(tokens[0], tokens[1], tokens[2]));
+        }
+        return read;
+    }
+
+    /**
+     * Up to count of the most recent distinct queries, oldest first.
+     */
+    synchronized List<Entry> recent(int count) {
+        LinkedHashSet<Entry> recent = new LinkedHashSet<>();
+        Iterator<Entry> newestFirst = entries.descendingIterator();
+        while (newestFirst.hasNext() && recent.size() < count) {
+            recent.add(newestFirst.next());
+        }
+        List<Entry> oldestFirst = new ArrayList<>(recent);
+        Collections.reverse(oldestFirst);
+        return oldestFirst;
+    }
+
+    /**
+     * Queues a query for the writer without waiting.
+     */
+    void append(String type, String lang, String line) {
+        if (closed) {
+            return;
+        }
+        // one query per line
+        if (!queue.offer(new Entry(type, lang, line.replaceAll("[\\r\\n]+", " ")))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // writes queued entries in batches, flushing once per batch
+    private void writeQueued() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            boolean end = batch.remove(END_OF_LOG);
+            write(batch);
+            batch.clear();
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void write(List<Entry> batch) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            for (Entry entry : batch) {
+                remember(entry);
+                if (++appended >= maxEntries) {
+                    rewrite();
+                } else {
+                    writer.write(entry.toString());
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // losing the log only makes the next warm-up less representative
+            logger.warn("Could not write query log {}, no longer logging queries", file);
+            closeWriter();
+        }
+    }
+
+    private void remember(Entry entry) {
+        entries.addLast(entry);
+        if (entries.size() > maxEntries) {
+            entries.removeFirst();
+        }
+    }
+
+    private void rewrite() throws IOException {
+        closeWriter();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries) {
+                out.write(entry.toString());
+                out.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        appended = 0;
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Could not close query log {}", file);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Writes the queries queued so far and closes the file.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END_OF_LOG);
+            writerThread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread.interrupt();
+        synchronized (this) {
+            closeWriter();
+        }
+        if (dropped.get() > 0) {
+            logger.warn("Dropped {} queries the query log could not keep up with", dropped.get());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package Searcher;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small LRU cache of rendered query results. Keys contain the version of the reader
+ * the results were computed on, so entries from before a refresh are never returned.
+ */
+class ResultCache {
+    private final int capacity;
+    private final Map<List<Object>, List<String>> entries;
+
+    ResultCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<List<Object>, List<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, List<String>> eldest) {
+                return size() > ResultCache.this.capacity;
+            }
+        };
+    }
+
+    synchronized List<String> get(List<Object> key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(List<Object> key, List<String> lines) {
+        if (capacity > 0) {
+            entries.put(key, lines);
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package Searcher;
 
+import Common.Metrics;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
@@ -8,46 +9,262 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
-import org.apache.lucene.search.highlight.Formatter;
-import org.apache.lucene.search.highlight.Highlighter;
-import org.apache.lucene.search.highlight.QueryScorer;
-import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.spell.SuggestWord;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.util.QueryBuilder;
 import org.jline.terminal.Terminal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-class SearchHandler {
+class SearchHandler implements AutoCloseable {
 
 
     private static Logger logger = LoggerFactory.getLogger(SearchHandler.class);
     private int limit;
     private Boolean details;
-    private Boolean lang_pol;
+    private String lang;
     private Boolean color;
     private String queryType;
-    private IndexSearcher searcher;
+    private int maxPassages;
+    private int maxHighlightLength;
+    private int pageSize;
+    private boolean stream;
+    private boolean countHits;
+    private volatile QueryLog queryLog;
+    private Cursor cursor;
+    static final long DEFAULT_REFRESH_MILLIS = 1000;
+    static final int DEFAULT_CACHE_SIZE = 100;
+    static final int DEFAULT_MAX_PASSAGES = 10;
+    static final int DEFAULT_MAX_HIGHLIGHT_LENGTH = 50 * 1024;
+    static final int DEFAULT_STREAM_PAGE_SIZE = 100;
+    // very broad results are not worth keeping around
+    private static final int MAX_CACHED_LINES = 10_000;
+    private final Analyzer polishAnalyzer = new MorfologikAnalyzer();
+    private final Analyzer englishAnalyzer = new EnglishAnalyzer();
+    private final ResultCache cache;
+    private final Metrics metrics = new Metrics("Searcher queries");
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private SlicedSearcherFactory searcherFactory;
+    private ScheduledExecutorService refresher;
+    private ExecutorService shardSearches;
+    private ExecutorService suggesterUpdates;
 
     SearchHandler(Path indexPath) throws IOException {
+        this(indexPath, DEFAULT_REFRESH_MILLIS, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Opens the language shards of the index for searching and checks every refreshMillis whether
+     * they have changed, so that documents added by a running Indexer show up without a restart.
+     * A shard the Indexer has not created yet is opened once it appears.
+     * Up to cacheSize recent results are cached until the index changes.
+     */
+    SearchHandler(Path indexPath, long refreshMillis, int cacheSize) throws IOException {
+        this(indexPath, refreshMillis, cacheSize, new SlicedSearcherFactory(SlicedSearcherFactory.DEFAULT_THREADS,
+                SlicedSearcherFactory.DEFAULT_MAX_DOCS_PER_SLICE, SlicedSearcherFactory.DEFAULT_MAX_SEGMENTS_PER_SLICE));
+    }
+
+    /**
+     * As above, with searchers created by searcherFactory, which is closed together with the handler.
+     */
+    SearchHandler(Path indexPath, long refreshMillis, int cacheSize, SlicedSearcherFactory searcherFactory) throws IOException {
+        this(indexPath, refreshMillis, cacheSize, searcherFactory, false);
+    }
+
+    /**
+     * As above. With preload, index files are memory mapped and read into memory as they are
+     * opened, so that the first queries on a shard or a new segment do not wait for the disk.
+     */
+    SearchHandler(Path indexPath, long refreshMillis, int cacheSize, SlicedSearcherFactory searcherFactory,
+                  boolean preload) throws IOException {
         limit = Integer.MAX_VALUE;
         details = false;
-        lang_pol = false;
+        lang = "en";
         color = false;
         queryType = "term";
+        maxPassages = DEFAULT_MAX_PASSAGES;
+        maxHighlightLength = DEFAULT_MAX_HIGHLIGHT_LENGTH;
+        pageSize = 0;
+        stream = false;
+        countHits = true;
+        cache = new ResultCache(cacheSize);
         logger.info("Trying to open index {} for searching", indexPath);
-        searcher = new IndexSearcher(DirectoryReader.open(FSDirectory.open(indexPath)));
+        this.searcherFactory = searcherFactory;
+        if (!Files.isDirectory(indexPath)) {
+            logger.error("Index directory does not exist: {}", indexPath);
+            searcherFactory.close();
+            throw new NoSuchFileException(indexPath.toString());
+        }
+        // completions are built in the background, so opening a large index is not held up by them
+        suggesterUpdates = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "searcher-suggester");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            shards.put("pl", new Shard("pl", polishAnalyzer, openDirectory(indexPath.resolve("pl"), preload)));
+            shards.put("en", new Shard("en", englishAnalyzer, openDirectory(indexPath.resolve("en"), preload)));
+            if (openShards() == 0) {
+                logger.warn("There are no language shards in {} yet", indexPath);
+            }
+        } catch (IOException e) {
+            suggesterUpdates.shutdownNow();
+            closeShards();
+            searcherFactory.close();
+            throw e;
+        }
+        shardSearches = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "searcher-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "searcher-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, refreshMillis);
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                openShards();
+                for (Shard shard : shards.values()) {
+                    if (shard.manager != null && shard.manager.maybeRefresh()) {
+                        logger.debug("Searcher of shard {} refreshed", shard.lang);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Could not refresh searcher", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        metrics.registerMBean("Searcher:type=SearchHandler");
         logger.info("Successfully created searchHandler for {}", indexPath);
     }
 
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    private static Directory openDirectory(Path path, boolean preload) throws IOException {
+        if (!preload) {
+            return FSDirectory.open(path);
+        }
+        MMapDirectory directory = new MMapDirectory(path);
+        directory.setPreload(true);
+        return directory;
+    }
+
+    /**
+     * Opens searchers of shards that exist on disk but were not opened yet, returns how many are open.
+     */
+    private synchronized int openShards() throws IOException {
+        int open = 0;
+        for (Shard shard : shards.values()) {
+            if (shard.manager == null && DirectoryReader.indexExists(shard.directory)) {
+                long start = System.nanoTime();
+                SearcherManager manager = new SearcherManager(shard.directory, searcherFactory);
+                long opened = System.nanoTime() - start;
+                metrics.record("shard.open", opened);
+                manager.addListener(new ReferenceManager.RefreshListener() {
+                    @Override
+                    public void beforeRefresh() {
+                    }
+
+                    @Override
+                    public void afterRefresh(boolean didRefresh) {
+                        if (didRefresh) {
+                            cache.clear();
+                            updateSuggester(shard);
+                        }
+                    }
+                });
+                shard.manager = manager;
+                updateSuggester(shard);
+                cache.clear();
+                logger.info("Opened shard {} in {} ms", shard.lang, opened / 1_000_000);
+            }
+            if (shard.manager != null) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    // in the background; refreshes that come while an update waits to run are covered by it
+    private void updateSuggester(Shard shard) {
+        if (!shard.suggesterQueued.compareAndSet(false, true)) {
+            return;
+        }
+        shard.suggesterUpdate = suggesterUpdates.submit(() -> {
+            // cleared before acquiring, so a refresh from now on queues another update
+            shard.suggesterQueued.set(false);
+            try {
+                IndexSearcher searcher = shard.manager.acquire();
+                try {
+                    DirectoryReader reader = (DirectoryReader) searcher.getIndexReader();
+                    // only when the shard changed since the last update
+                    if (reader.getVersion() != shard.suggester.builtVersion()) {
+                        long start = System.nanoTime();
+                        shard.suggester.update(reader);
+                        metrics.record("suggest.build", System.nanoTime() - start);
+                    }
+                } finally {
+                    shard.manager.release(searcher);
+                }
+            } catch (IOException e) {
+                logger.error("Could not update completions of shard " + shard.lang, e);
+            }
+        });
+    }
+
+    /**
+     * Waits up to timeoutMillis for pending completion updates, returns whether all are done.
+     */
+    boolean awaitSuggesters(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Shard shard : shards.values()) {
+            Future<?> pending = shard.suggesterUpdate;
+            if (pending == null) {
+                continue;
+            }
+            try {
+                pending.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | CancellationException e) {
+                // logged by the update itself
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queries that run successfully from now on are appended to queryLog, for later warm-ups.
+     */
+    void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * pl or en search one language shard, all searches both in parallel and merges the results.
+     */
     void setLang(String langName) throws Exception {
-        if (langName.equals("pl")) {
-            this.lang_pol = true;
-        } else if (langName.equals("en")) {
-            this.lang_pol = false;
+        if (langName.equals("pl") || langName.equals("en") || langName.equals("all")) {
+            this.lang = langName;
+            logger.info("Setting lang to {}", langName);
         } else {
             logger.info("Incorrect setLang input");
             throw new Exception("Incorrect input");
@@ -94,6 +311,56 @@ class SearchHandler {
         }
     }
 
+    void setPageSize(String pageSize) throws Exception {
+        try {
+            int parsed = Integer.parseInt(pageSize);
+            if (parsed < 0) {
+                throw new NumberFormatException();
+            }
+            this.pageSize = parsed;
+            logger.info("Setting page size to {}", pageSize);
+        } catch (NumberFormatException e) {
+            logger.info("Incorrect setPageSize input");
+            throw new Exception("Incorrect input");
+        }
+    }
+
+    void setStream(String setting) throws Exception {
+        if (setting.equals("on")) {
+            this.stream = true;
+            logger.info("Setting stream to true");
+        } else if (setting.equals("off")) {
+            this.stream = false;
+            logger.info("Setting stream to false");
+        } else {
+            logger.info("Incorrect setStream input");
+            throw new Exception("Incorrect input");
+        }
+    }
+
+    void setCount(String setting) throws Exception {
+        if (setting.equals("on")) {
+            this.countHits = true;
+            logger.info("Setting count to true");
+        } else if (setting.equals("off")) {
+            this.countHits = false;
+            logger.info("Setting count to false");
+        } else {
+            logger.info("Incorrect setCount input");
+            throw new Exception("Incorrect input");
+        }
+    }
+
+    void setMaxPassages(int maxPassages) {
+        this.maxPassages = Math.max(1, maxPassages);
+        logger.info("Setting max passages to {}", this.maxPassages);
+    }
+
+    void setMaxHighlightLength(int maxHighlightLength) {
+        this.maxHighlightLength = Math.max(1, maxHighlightLength);
+        logger.info("Setting max highlight length to {}", this.maxHighlightLength);
+    }
+
     void setQueryTerm() {
         logger.info("Setting query to term");
         this.queryType = "term";
@@ -109,22 +376,382 @@ class SearchHandler {
         this.queryType = "fuzzy";
     }
 
+    void setQueryPrefix() {
+        logger.info("Setting query to prefix");
+        this.queryType = "prefix";
+    }
+
     void doQuery(String line, Terminal terminal) throws Exception {
-        Query query;
-        Analyzer analyzer;
-        String[] allFields;
-        if (lang_pol) {
-            analyzer = new MorfologikAnalyzer();
-            allFields = new String[]{"body-pl", "name-pl"};
-        } else {
-            analyzer = new EnglishAnalyzer();
-            allFields = new String[]{"body-en", "name-en"};
+        String kind = queryType + "." + lang;
+        long start = System.nanoTime();
+        try {
+            runQuery(line, terminal);
+        } catch (Exception e) {
+            metrics.increment("failures." + kind);
+            throw e;
+        }
+        metrics.record("query." + kind, System.nanoTime() - start);
+        log(queryType, lang, line);
+    }
+
+    /**
+     * Runs a query with all settings given by the caller, so it can be called from many threads
+     * at once. Results are not cached and highlights are marked with {@code <B>} tags.
+     */
+    SearchResult search(String line, String type, String lang, int limit, boolean details) throws Exception {
+        String kind = type + "." + lang;
+        long start = System.nanoTime();
+        Cursor cursor = openCursor(line, lang, type, Math.max(1, limit), Math.max(1, limit));
+        try {
+            long count = count(cursor);
+            Page page = nextPage(cursor, cursor.pageSize);
+            String[] snippets = details
+                    ? highlight(cursor, page, new DefaultPassageFormatter("<B>", "</B>", "\n", false))
+                    : null;
+            String correction = page.hits.length == 0 && !type.equals("prefix") ? didYouMean(cursor, line) : null;
+            metrics.record("query." + kind, System.nanoTime() - start);
+            log(type, lang, line);
+            return new SearchResult(count, page.paths, snippets, correction);
+        } catch (Exception e) {
+            metrics.increment("failures." + kind);
+            throw e;
+        } finally {
+            release(cursor);
+        }
+    }
+
+    private void log(String type, String lang, String line) {
+        QueryLog log = queryLog;
+        if (log != null) {
+            log.append(type, lang, line);
+        }
+    }
+
+    private void runQuery(String line, Terminal terminal) throws Exception {
+        closeCursor();
+        // paged and streamed output is never cached, since it depends on the cursor
+        boolean cacheable = pageSize == 0 && !stream;
+        List<Object> key = null;
+        if (cacheable) {
+            // looked up before any query is built, so a repeated search does not analyze it again
+            key = Arrays.asList(versions(lang), lang, queryType, normalize(line), limit, details, color,
+                    maxPassages, maxHighlightLength, countHits);
+            List<String> cached = cache.get(key);
+            metrics.increment(cached != null ? "cache.hits" : "cache.misses");
+            if (cached != null) {
+                logger.info("Returning cached results for {}", line);
+                print(cached, terminal);
+                return;
+            }
         }
+        int batch = pageSize > 0 ? pageSize : (stream ? DEFAULT_STREAM_PAGE_SIZE : limit);
+        Cursor current = openCursor(line, lang, queryType, batch, limit);
+        boolean keepCursor = false;
+        try {
+            List<String> lines = new ArrayList<>();
+            if (countHits) {
+                // counting does not score or collect, so it is much cheaper than collecting every hit
+                long countStart = System.nanoTime();
+                lines.add("File count: " + count(current));
+                metrics.record("countHits", System.nanoTime() - countStart);
+            }
+            renderPage(current, lines);
+            if (current.shown == 0 && !queryType.equals("prefix")) {
+                String correction = didYouMean(current, line);
+                if (correction != null) {
+                    lines.add("Did you mean: " + correction + "?");
+                }
+            }
+            if (stream) {
+                print(lines, terminal);
+                while (!current.exhausted) {
+                    lines = new ArrayList<>();
+                    renderPage(current, lines);
+                    print(lines, terminal);
+                }
+            } else if (pageSize > 0 && !current.exhausted) {
+                lines.add("");
+                lines.add("-- " + current.shown + " shown, %next for more --");
+                print(lines, terminal);
+                cursor = current;
+                keepCursor = true;
+            } else {
+                if (cacheable && lines.size() <= MAX_CACHED_LINES) {
+                    cache.put(key, lines);
+                }
+                print(lines, terminal);
+            }
+        } finally {
+            if (!keepCursor) {
+                release(current);
+            }
+        }
+    }
+
+    /**
+     * Prints the next page of the last paged query. The page is read from the same
+     * point-in-time searcher as the first one, so results do not shift between pages.
+     */
+    void nextPage(Terminal terminal) throws Exception {
+        if (cursor == null) {
+            terminal.writer().println("No more results");
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        renderPage(cursor, lines);
+        if (!cursor.exhausted) {
+            lines.add("");
+            lines.add("-- " + cursor.shown + " shown, %next for more --");
+        }
+        print(lines, terminal);
+        if (cursor.exhausted) {
+            closeCursor();
+        }
+    }
+
+    private void closeCursor() throws IOException {
+        if (cursor != null) {
+            release(cursor);
+            cursor = null;
+        }
+    }
+
+    /**
+     * Reader versions of the shards for lang, -1 for a shard that is not open yet.
+     */
+    private List<Long> versions(String lang) throws IOException {
+        List<Long> versions = new ArrayList<>();
+        for (Shard shard : lang.equals("all") ? shards.values() : Collections.singletonList(shards.get(lang))) {
+            SearcherManager manager = shard.manager;
+            if (manager == null) {
+                versions.add(-1L);
+                continue;
+            }
+            IndexSearcher searcher = manager.acquire();
+            try {
+                versions.add(((DirectoryReader) searcher.getIndexReader()).getVersion());
+            } finally {
+                manager.release(searcher);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Acquires searchers of the shards for lang and builds the query for each of them. With all,
+     * a shard in whose language the query analyzes to nothing (e.g. a stopword) is left out.
+     */
+    private Cursor openCursor(String line, String lang, String type, int pageSize, int limit) throws Exception {
+        List<Shard> active = new ArrayList<>();
+        List<Query> queries = new ArrayList<>();
+        List<IndexSearcher> searchers = new ArrayList<>();
+        Exception failure = null;
+        try {
+            for (Shard shard : lang.equals("all") ? shards.values() : Collections.singletonList(shards.get(lang))) {
+                Query query;
+                try {
+                    query = type.equals("prefix")
+                            ? buildPrefixQuery(line, shard)
+                            : buildQuery(line, shard.analyzer, type, shard.lang.equals("pl"));
+                } catch (Exception e) {
+                    failure = e;
+                    continue;
+                }
+                SearcherManager manager = shard.manager;
+                if (manager == null) {
+                    // nothing was indexed in this language yet
+                    continue;
+                }
+                searchers.add(manager.acquire());
+                active.add(shard);
+                queries.add(query);
+            }
+            if (failure != null && (active.isEmpty() || !lang.equals("all"))) {
+                throw failure;
+            }
+        } catch (Exception e) {
+            for (int i = 0; i < searchers.size(); i++) {
+                active.get(i).manager.release(searchers.get(i));
+            }
+            throw e;
+        }
+        return new Cursor(active.toArray(new Shard[0]), searchers.toArray(new IndexSearcher[0]),
+                queries.toArray(new Query[0]), pageSize, limit);
+    }
+
+    private static void release(Cursor cursor) throws IOException {
+        for (int s = 0; s < cursor.searchers.length; s++) {
+            cursor.shards[s].manager.release(cursor.searchers[s]);
+        }
+    }
+
+    private long count(Cursor cursor) throws Exception {
+        List<Integer> all = new ArrayList<>();
+        for (int s = 0; s < cursor.searchers.length; s++) {
+            all.add(s);
+        }
+        long count = 0;
+        for (Integer shardCount : onShards(all, s -> cursor.searchers[s].count(cursor.queries[s]))) {
+            count += shardCount;
+        }
+        return count;
+    }
+
+    /**
+     * Next hits of the query over all shards of the cursor. Each shard's hits are read in batches,
+     * in parallel, and merged by their score relative to the shard's best hit, since scores of
+     * different analyzers and index statistics are not comparable. A path already shown is skipped.
+     */
+    private Page nextPage(Cursor cursor, int size) throws Exception {
+        List<ScoreDoc> hits = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        while (hits.size() < size) {
+            List<Integer> empty = new ArrayList<>();
+            for (int s = 0; s < cursor.searchers.length; s++) {
+                if (cursor.buffered.get(s).isEmpty() && !cursor.done[s]) {
+                    empty.add(s);
+                }
+            }
+            if (!empty.isEmpty()) {
+                onShards(empty, s -> {
+                    fill(cursor, s);
+                    return null;
+                });
+            }
+            int best = -1;
+            for (int s = 0; s < cursor.searchers.length; s++) {
+                if (!cursor.buffered.get(s).isEmpty() && (best < 0
+                        || relativeScore(cursor, s) > relativeScore(cursor, best))) {
+                    best = s;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            ScoreDoc hit = cursor.buffered.get(best).poll();
+            String path = cursor.bufferedPaths.get(best).poll();
+            // one shard holds a path at most once
+            if (cursor.searchers.length > 1 && !cursor.seen.add(path)) {
+                // e.g. a file detected as the other language after an edit, before the next refresh
+                metrics.increment("duplicates");
+                continue;
+            }
+            hits.add(hit);
+            paths.add(path);
+        }
+        cursor.shown += hits.size();
+        cursor.exhausted = hits.size() < size || cursor.shown >= cursor.limit;
+        return new Page(hits.toArray(new ScoreDoc[0]), paths.toArray(new String[0]));
+    }
+
+    private void fill(Cursor cursor, int s) throws IOException {
+        int batch = cursor.pageSize;
+        TopDocs results = cursor.after[s] == null
+                ? cursor.searchers[s].search(cursor.queries[s], batch)
+                : cursor.searchers[s].searchAfter(cursor.after[s], cursor.queries[s], batch);
+        ScoreDoc[] hits = results.scoreDocs;
+        cursor.done[s] = hits.length < batch;
+        if (hits.length == 0) {
+            return;
+        }
+        if (cursor.after[s] == null) {
+            cursor.bestScore[s] = hits[0].score > 0 ? hits[0].score : 1;
+        }
+        cursor.after[s] = hits[hits.length - 1];
+        for (ScoreDoc hit : hits) {
+            hit.shardIndex = s;
+        }
+        cursor.buffered.get(s).addAll(Arrays.asList(hits));
+        cursor.bufferedPaths.get(s).addAll(Arrays.asList(PathReader.read(cursor.searchers[s], hits)));
+    }
+
+    private static float relativeScore(Cursor cursor, int s) {
+        return cursor.buffered.get(s).peek().score / cursor.bestScore[s];
+    }
+
+    /**
+     * Snippets of the hits on a page, highlighted in each shard in parallel.
+     */
+    private String[] highlight(Cursor cursor, Page page, PassageFormatter formatter) throws Exception {
+        List<Integer> all = new ArrayList<>();
+        for (int s = 0; s < cursor.searchers.length; s++) {
+            all.add(s);
+        }
+        List<String[]> perShard = onShards(all, s -> {
+            List<ScoreDoc> own = new ArrayList<>();
+            for (ScoreDoc hit : page.hits) {
+                if (hit.shardIndex == s) {
+                    own.add(hit);
+                }
+            }
+            if (own.isEmpty()) {
+                return new String[0];
+            }
+            ScoreDoc[] ownHits = own.toArray(new ScoreDoc[0]);
+            UnifiedHighlighter highlighter = new UnifiedHighlighter(cursor.searchers[s], cursor.shards[s].analyzer);
+            highlighter.setFormatter(formatter);
+            highlighter.setMaxLength(maxHighlightLength);
+            // a hit only in the file name has nothing to show from the body
+            highlighter.setMaxNoHighlightPassages(0);
+            // snippets for the whole page are computed in one pass, from offsets stored in postings
+            return highlighter.highlight("body-" + cursor.shards[s].lang, cursor.queries[s],
+                    new TopDocs(new TotalHits(ownHits.length, TotalHits.Relation.EQUAL_TO), ownHits), maxPassages);
+        });
+        String[] snippets = new String[page.hits.length];
+        int[] next = new int[perShard.size()];
+        for (int i = 0; i < page.hits.length; i++) {
+            int s = page.hits[i].shardIndex;
+            snippets[i] = perShard.get(s)[next[s]++];
+        }
+        return snippets;
+    }
+
+    private interface ShardTask<T> {
+        T run(int shard) throws IOException;
+    }
+
+    /**
+     * Runs task for the given shards, in parallel when there is more than one,
+     * and returns the results in the same order.
+     */
+    private <T> List<T> onShards(List<Integer> shards, ShardTask<T> task) throws Exception {
+        List<T> results = new ArrayList<>();
+        if (shards.size() == 1) {
+            results.add(task.run(shards.get(0)));
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard : shards) {
+            futures.add(shardSearches.submit(() -> task.run(shard)));
+        }
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        return results;
+    }
+
+    private static void print(List<String> lines, Terminal terminal) {
+        for (String output : lines) {
+            terminal.writer().println(output);
+        }
+        terminal.writer().flush();
+    }
+
+    private static String normalize(String line) {
+        return line.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private Query buildQuery(String line, Analyzer analyzer, String queryType, boolean polish) throws Exception {
+        Query query;
         switch (queryType) {
             case "term": {
 
                 String term1 = getTerm(line, analyzer);
-                if (lang_pol) {
+                if (polish) {
                     query = new BooleanQuery.Builder()
                             .add(new TermQuery(new Term("body-pl", term1)), BooleanClause.Occur.SHOULD)
                             .add(new TermQuery(new Term("name-pl", term1)), BooleanClause.Occur.SHOULD)
@@ -138,7 +765,7 @@ class SearchHandler {
                 break;
             }
             case "phrase":
-                if (lang_pol) {
+                if (polish) {
                     QueryBuilder tempBuilder = new QueryBuilder(analyzer);
                     query = new BooleanQuery.Builder()
                             .add(tempBuilder.createPhraseQuery("body-pl", line), BooleanClause.Occur.SHOULD)
@@ -154,7 +781,7 @@ class SearchHandler {
                 break;
             case "fuzzy": {
                 String term1 = getTerm(line, analyzer);
-                if (lang_pol) {
+                if (polish) {
                     query = new BooleanQuery.Builder()
                             .add(new FuzzyQuery(new Term("body-pl", term1)), BooleanClause.Occur.SHOULD)
                             .add(new FuzzyQuery(new Term("name-pl", term1)), BooleanClause.Occur.SHOULD)
@@ -170,32 +797,129 @@ class SearchHandler {
             default:
                 throw new Exception();
         }
-        TopDocs results = searcher.search(query, limit);
+        return query;
+    }
+
+    /**
+     * Matches every document with a term starting with the first word of line, in its body or name.
+     * All matches score the same, the completions are only used for suggestions.
+     */
+    private Query buildPrefixQuery(String line, Shard shard) throws Exception {
+        String[] words = line.trim().toLowerCase(Locale.ROOT).split("\\s+");
+        if (words[0].isEmpty()) {
+            throw new Exception("Incorrect input");
+        }
+        String prefix = words[0];
+        return new BooleanQuery.Builder()
+                .add(new PrefixQuery(new Term("body-" + shard.lang, prefix)), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(new Term("name-" + shard.lang, prefix)), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    /**
+     * Most frequent completions of prefix in the shards of lang, for as-you-type suggestions.
+     */
+    List<String> complete(String prefix, String lang, int count) throws IOException {
+        List<Lookup.LookupResult> results = new ArrayList<>();
+        for (Shard shard : lang.equals("all") ? shards.values() : Collections.singletonList(shards.get(lang))) {
+            List<Lookup.LookupResult> completions = shard.suggester.complete(prefix.toLowerCase(Locale.ROOT), count);
+            if (completions != null) {
+                results.addAll(completions);
+            }
+        }
+        results.sort(Comparator.comparingLong((Lookup.LookupResult result) -> result.value).reversed());
+        Set<String> terms = new LinkedHashSet<>();
+        for (Lookup.LookupResult result : results) {
+            if (terms.size() == count) {
+                break;
+            }
+            terms.add(result.key.toString());
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * The query with every word that is not in the index replaced by its closest indexed term,
+     * in the shard where that changes the most frequent words, or null when nothing is misspelled.
+     * Words are analyzed, so corrections are indexed forms (e.g. stems).
+     */
+    private String didYouMean(Cursor cursor, String line) throws Exception {
+        long start = System.nanoTime();
+        List<Integer> all = new ArrayList<>();
+        for (int s = 0; s < cursor.searchers.length; s++) {
+            all.add(s);
+        }
+        String best = null;
+        long bestFreq = 0;
+        for (Object[] corrected : onShards(all, s -> {
+            Shard shard = cursor.shards[s];
+            List<String> words = new ArrayList<>();
+            long freq = 0;
+            boolean changed = false;
+            for (String word : analyze(line, shard.analyzer)) {
+                SuggestWord correction = shard.suggester.correct(cursor.searchers[s].getIndexReader(), word);
+                if (correction != null) {
+                    words.add(correction.string);
+                    freq += correction.freq;
+                    changed = true;
+                } else {
+                    words.add(word);
+                }
+            }
+            return changed ? new Object[]{String.join(" ", words), freq} : null;
+        })) {
+            if (corrected != null && (best == null || (Long) corrected[1] > bestFreq)) {
+                best = (String) corrected[0];
+                bestFreq = (Long) corrected[1];
+            }
+        }
+        metrics.record("suggest.didYouMean", System.nanoTime() - start);
+        return best;
+    }
+
+    private static List<String> analyze(String line, Analyzer analyzer) throws IOException {
+        List<String> words = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("", line)) {
+            CharTermAttribute charTermAttribute = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                words.add(charTermAttribute.toString());
+            }
+            stream.end();
+        }
+        return words;
+    }
+
+    private void renderPage(Cursor cursor, List<String> lines) throws Exception {
+        int size = Math.min(cursor.pageSize, cursor.limit - cursor.shown);
+        long start = System.nanoTime();
+        Page page = nextPage(cursor, size);
+        long searched = System.nanoTime();
+        metrics.record("search", searched - start);
+        renderHits(cursor, page, lines);
+        metrics.record(details ? "render.details" : "render.paths", System.nanoTime() - searched);
+    }
+
+    private void renderHits(Cursor cursor, Page page, List<String> lines) throws Exception {
         if (!details) {
-            terminal.writer().println("File count: " + results.totalHits.value);
-            ScoreDoc[] hits = results.scoreDocs;
-            for (ScoreDoc hit : hits) {
-                terminal.writer().println();
-                terminal.writer().println(searcher.doc(hit.doc).get("fullPath"));
+            for (String path : page.paths) {
+                lines.add("");
+                lines.add(path);
             }
         } else {
             try {
-                Formatter formatter;
+                PassageFormatter formatter;
                 if (color) {
-                    formatter = new SimpleHTMLFormatter("\u001b[31m", "\u001b[0m");
+                    formatter = new DefaultPassageFormatter("\u001b[31m", "\u001b[0m", "\n", false);
                 } else {
-                    formatter = new SimpleHTMLFormatter();
-                }
-
-                terminal.writer().println("File count: " + results.totalHits.value);
-                ScoreDoc[] hits = results.scoreDocs;
-                Highlighter highlighter = new Highlighter(formatter, new QueryScorer(query));
-                for (ScoreDoc hit : hits) {
-                    terminal.writer().println();
-                    terminal.writer().println("\u001B[1m" + searcher.doc(hit.doc).get("fullPath") + "\u001b[0m");
-                    String[] frags = highlighter.getBestFragments(analyzer, allFields[1], searcher.doc(hit.doc).get(allFields[0]), 10);
-                    for (String frag : frags) {
-                        terminal.writer().println(frag);
+                    formatter = new DefaultPassageFormatter("<B>", "</B>", "\n", false);
+                }
+                String[] snippets = highlight(cursor, page, formatter);
+                for (int i = 0; i < page.paths.length; i++) {
+                    lines.add("");
+                    lines.add("\u001B[1m" + page.paths[i] + "\u001b[0m");
+                    if (snippets[i] != null) {
+                        lines.add(snippets[i]);
                     }
                 }
             } catch (Exception e) {
@@ -205,17 +929,120 @@ class SearchHandler {
         }
     }
 
+    /**
+     * Language shard of the index. Its manager stays null until the Indexer creates the shard.
+     */
+    private static class Shard {
+        final String lang;
+        final Analyzer analyzer;
+        final Directory directory;
+        final Suggester suggester;
+        volatile SearcherManager manager;
+        volatile Future<?> suggesterUpdate;
+        final AtomicBoolean suggesterQueued = new AtomicBoolean();
+
+        Shard(String lang, Analyzer analyzer, Directory directory) {
+            this.lang = lang;
+            this.analyzer = analyzer;
+            this.directory = directory;
+            this.suggester = new Suggester(lang);
+        }
+    }
+
+    private static class Page {
+        final ScoreDoc[] hits;
+        final String[] paths;
+
+        Page(ScoreDoc[] hits, String[] paths) {
+            this.hits = hits;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * Position of a paged query in every shard it runs on: hits read from a shard but not
+     * shown yet, and where to continue reading it. Holds on to the searchers it was
+     * started on until the last page has been shown or another query is run.
+     */
+    private static class Cursor {
+        final Shard[] shards;
+        final IndexSearcher[] searchers;
+        final Query[] queries;
+        final ScoreDoc[] after;
+        final float[] bestScore;
+        final boolean[] done;
+        final List<Deque<ScoreDoc>> buffered;
+        final List<Deque<String>> bufferedPaths;
+        final Set<String> seen = new HashSet<>();
+        final int pageSize;
+        final int limit;
+        int shown;
+        boolean exhausted;
+
+        Cursor(Shard[] shards, IndexSearcher[] searchers, Query[] queries, int pageSize, int limit) {
+            this.shards = shards;
+            this.searchers = searchers;
+            this.queries = queries;
+            this.after = new ScoreDoc[searchers.length];
+            this.bestScore = new float[searchers.length];
+            this.done = new boolean[searchers.length];
+            this.buffered = new ArrayList<>(searchers.length);
+            this.bufferedPaths = new ArrayList<>(searchers.length);
+            for (int s = 0; s < searchers.length; s++) {
+                buffered.add(new ArrayDeque<>());
+                bufferedPaths.add(new ArrayDeque<>());
+            }
+            this.pageSize = pageSize;
+            this.limit = limit;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        refresher.shutdownNow();
+        shardSearches.shutdownNow();
+        suggesterUpdates.shutdownNow();
+        metrics.close();
+        try {
+            closeCursor();
+            closeShards();
+        } finally {
+            searcherFactory.close();
+            polishAnalyzer.close();
+            englishAnalyzer.close();
+        }
+    }
+
+    private void closeShards() throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards.values()) {
+            try {
+                if (shard.manager != null) {
+                    shard.manager.close();
+                }
+                shard.directory.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     private String getTerm(String line, Analyzer analyzer) throws Exception {
-        TokenStream stream = analyzer.tokenStream("", line);
-        CharTermAttribute charTermAttribute = stream.addAttribute(CharTermAttribute.class);
-        stream.reset();
-        if (!stream.incrementToken()) {
-            logger.warn("No term produced");
-            throw new Exception();
-        }
-        String term1 = charTermAttribute.toString();
-        logger.info("Term reduced to {}", term1);
-        stream.close();
-        return term1;
+        // analyzers are shared between queries, so the stream has to be closed on every path
+        try (TokenStream stream = analyzer.tokenStream("", line)) {
+            CharTermAttribute charTermAttribute = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            if (!stream.incrementToken()) {
+                logger.warn("No term produced");
+                throw new Exception();
+            }
+            String term1 = charTermAttribute.toString();
+            logger.info("Term reduced to {}", term1);
+            stream.end();
+            return term1;
+        }
     }
 }
@@ -0,0 +1,20 @@
+package Searcher;
+
+/**
+ * Hits of a single query, for callers other than the REPL. snippets is null when details were
+ * not requested, and has a null entry for a hit that matched only in its file name.
+ * didYouMean is a corrected query when nothing was found and a correction is known, otherwise null.
+ */
+class SearchResult {
+    final long count;
+    final String[] paths;
+    final String[] snippets;
+    final String didYouMean;
+
+    SearchResult(long count, String[] paths, String[] snippets, String didYouMean) {
+        this.count = count;
+        this.paths = paths;
+        this.snippets = snippets;
+        this.didYouMean = didYouMean;
+    }
+}
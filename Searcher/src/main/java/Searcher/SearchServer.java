@@ -0,0 +1,255 @@
+package Searcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves queries over HTTP on the loopback interface, with JSON responses:
+ * GET /search?q=QUERY[&amp;type=term|phrase|fuzzy|prefix][&amp;lang=en|pl|all][&amp;limit=N][&amp;details=on|off],
+ * GET /suggest?q=PREFIX[&amp;lang=en|pl|all][&amp;limit=N] for completions as the user types,
+ * and GET /stats for the query metrics.
+ * Queries run on a fixed pool of threads sharing the handler's searcher. Once maxInFlight
+ * queries are running or waiting for a thread, further ones are answered with 503 right away.
+ * A limit above maxLimit is lowered to it, so that one request cannot read the whole index.
+ */
+class SearchServer implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(SearchServer.class);
+    static final int DEFAULT_PORT = 7070;
+    static final int DEFAULT_LIMIT = 10;
+    static final int DEFAULT_MAX_LIMIT = 1000;
+
+    private final SearchHandler handler;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+
+    SearchServer(SearchHandler handler, int port, int threads, int maxInFlight) throws IOException {
+        this.handler = handler;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "search-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // small responses otherwise wait for the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // handlers run on the dispatcher thread and only hand queries over to the workers
+        server.setExecutor(null);
+        server.createContext("/search", this::search);
+        server.createContext("/suggest", this::suggest);
+        server.createContext("/stats", this::stats);
+    }
+
+    void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        logger.info("Setting max limit to {}", this.maxLimit);
+    }
+
+    void start() {
+        server.start();
+        logger.info("Serving queries on {}", server.getAddress());
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        if (!inFlight.tryAcquire()) {
+            handler.getMetrics().increment("server.rejected");
+            respond(exchange, 503, error("too many queries in flight"));
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    runSearch(exchange);
+                } catch (IOException e) {
+                    logger.warn("Could not answer {}: {}", exchange.getRequestURI(), e.getMessage());
+                } finally {
+                    exchange.close();
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            respond(exchange, 503, error("server is shutting down"));
+        }
+    }
+
+    private void runSearch(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String line = params.get("q");
+            String type = params.getOrDefault("type", "term");
+            String lang = params.getOrDefault("lang", "en");
+            boolean details = params.getOrDefault("details", "off").equals("on");
+            int limit = parseLimit(params);
+            if (line == null || line.isEmpty() || limit <= 0
+                    || !(type.equals("term") || type.equals("phrase") || type.equals("fuzzy") || type.equals("prefix"))
+                    || !(lang.equals("en") || lang.equals("pl") || lang.equals("all"))) {
+                respond(exchange, 400, error("Incorrect input"));
+                return;
+            }
+            long start = System.nanoTime();
+            SearchResult result;
+            try {
+                result = handler.search(line, type, lang, limit, details);
+            } catch (Exception e) {
+                // e.g. a query that analyzes to no term
+                respond(exchange, 400, error("Incorrect query"));
+                return;
+            }
+            respond(exchange, 200, toJson(result, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+        } catch (RuntimeException e) {
+            logger.error("Error serving {}", exchange.getRequestURI(), e);
+            respond(exchange, 500, error("internal error"));
+        }
+    }
+
+    // completions come from memory, so they are answered on the dispatcher thread
+    private void suggest(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String prefix = params.get("q");
+            String lang = params.getOrDefault("lang", "en");
+            int limit = parseLimit(params);
+            if (prefix == null || prefix.isEmpty() || limit <= 0
+                    || !(lang.equals("en") || lang.equals("pl") || lang.equals("all"))) {
+                respond(exchange, 400, error("Incorrect input"));
+                return;
+            }
+            long start = System.nanoTime();
+            List<String> completions = handler.complete(prefix, lang, limit);
+            handler.getMetrics().record("suggest.complete", System.nanoTime() - start);
+            StringBuilder json = new StringBuilder("{\"completions\":[");
+            for (int i = 0; i < completions.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(quote(completions.get(i)));
+            }
+            respond(exchange, 200, json.append("]}").toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, handler.getMetrics().toJson());
+    }
+
+    // -1 when limit is not a number
+    private int parseLimit(Map<String, String> params) {
+        try {
+            return Math.min(Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_LIMIT))), maxLimit);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String toJson(SearchResult result, long tookMicros) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"count\":").append(result.count)
+                .append(",\"tookMicros\":").append(tookMicros)
+                .append(",\"hits\":[");
+        for (int i = 0; i < result.paths.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"path\":").append(quote(result.paths[i]));
+            if (result.snippets != null) {
+                json.append(",\"snippet\":").append(result.snippets[i] == null ? "null" : quote(result.snippets[i]));
+            }
+            json.append('}');
+        }
+        json.append(']');
+        if (result.didYouMean != null) {
+            json.append(",\"didYouMean\":").append(quote(result.didYouMean));
+        }
+        return json.append('}').toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        workers.shutdownNow();
+    }
+}
@@ -13,18 +13,55 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Searcher {
     private static Logger logger = LoggerFactory.getLogger(Searcher.class);
+    private static final long started = System.nanoTime();
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+    private static long refreshMillis = Long.getLong("searcher.refreshMs", SearchHandler.DEFAULT_REFRESH_MILLIS);
+    private static int cacheSize = Integer.getInteger("searcher.cacheSize", SearchHandler.DEFAULT_CACHE_SIZE);
+    private static int maxPassages = Integer.getInteger("searcher.maxPassages", SearchHandler.DEFAULT_MAX_PASSAGES);
+    private static int maxHighlightLength = Integer.getInteger("searcher.maxHighlightLength", SearchHandler.DEFAULT_MAX_HIGHLIGHT_LENGTH);
+    private static String metricsFile = System.getProperty("searcher.metricsFile", "logs/metrics_searcher.jsonl");
+    private static long metricsIntervalMillis = Long.getLong("searcher.metricsIntervalMs", 60_000);
+    private static int searchThreads = Integer.getInteger("searcher.searchThreads", SlicedSearcherFactory.DEFAULT_THREADS);
+    private static int sliceDocs = Integer.getInteger("searcher.sliceDocs", SlicedSearcherFactory.DEFAULT_MAX_DOCS_PER_SLICE);
+    private static int sliceSegments = Integer.getInteger("searcher.sliceSegments", SlicedSearcherFactory.DEFAULT_MAX_SEGMENTS_PER_SLICE);
+    private static int serverThreads = Integer.getInteger("searcher.serverThreads", Runtime.getRuntime().availableProcessors());
+    private static int maxInFlight = Integer.getInteger("searcher.maxInFlight", 4 * serverThreads);
+    private static int maxLimit = Integer.getInteger("searcher.maxLimit", SearchServer.DEFAULT_MAX_LIMIT);
+    private static boolean preload = Boolean.getBoolean("searcher.preload");
+    private static String queryLogFile = System.getProperty("searcher.queryLog", "logs/queries_searcher.txt");
+    private static int queryLogSize = Integer.getInteger("searcher.queryLogSize", QueryLog.DEFAULT_MAX_ENTRIES);
+    private static String warmupFile = System.getProperty("searcher.warmupFile", "");
+    private static int warmupReplay = Integer.getInteger("searcher.warmupReplay", StartupWarmup.DEFAULT_REPLAY);
+    private static int warmupRounds = Integer.getInteger("searcher.warmupRounds", StartupWarmup.DEFAULT_ROUNDS);
+    private static long warmupMillis = Long.getLong("searcher.warmupMs", StartupWarmup.DEFAULT_MAX_MILLIS);
 
     public static void main(String[] args) {
-        logger.info("Warming up...");
         Path indexPath = Paths.get(System.getProperty("user.home"), ".index");
+        if (args.length > 0) {
+            serve(indexPath, args);
+            return;
+        }
         try (Terminal terminal = TerminalBuilder.builder()
                 .jna(false)
                 .jansi(true)
-                .build()) {
-            SearchHandler handler = new SearchHandler(indexPath);
+                .build();
+             SearchHandler handler = new SearchHandler(indexPath, refreshMillis, cacheSize,
+                     new SlicedSearcherFactory(searchThreads, sliceDocs, sliceSegments), preload)) {
+            handler.setMaxPassages(maxPassages);
+            handler.setMaxHighlightLength(maxHighlightLength);
+            if (!metricsFile.isEmpty()) {
+                handler.getMetrics().dumpTo(Paths.get(metricsFile), metricsIntervalMillis);
+            }
+            terminal.writer().println("Warming up...");
+            terminal.writer().flush();
+            QueryLog queryLog = warmUp(handler);
+            terminal.writer().println("Ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
             LineReader lineReader = LineReaderBuilder.builder()
                     .terminal(terminal)
                     .completer(new Completers.FileNameCompleter())
@@ -33,7 +70,7 @@ public class Searcher {
                 String line;
                 try {
                     line = lineReader.readLine("> ");
-                    String usage = "Usage: java -jar Searcher-1.0.0-jar-with-dependencies.jar [%lang en/pl] [%details on/off] [%color on/off] [%limit num] [%term/phrase/fuzzy] [query]";
+                    String usage = "Usage: java -jar Searcher-1.0.0-jar-with-dependencies.jar [%lang en/pl/all] [%details on/off] [%color on/off] [%limit num] [%page num] [%next] [%stream on/off] [%count on/off] [%stats] [%term/phrase/fuzzy/prefix] [query]";
                     if (line == null || line.length() == 0) {
                         logger.info("Incorrect line.");
                         terminal.writer().println(usage);
@@ -55,6 +92,27 @@ public class Searcher {
                             handler.setLimit(tokens[1]);
                             continue;
                         }
+                        if (tokens[0].equals("%page") && tokens.length == 2) {
+                            handler.setPageSize(tokens[1]);
+                            continue;
+                        }
+                        if (tokens[0].equals("%next") && tokens.length == 1) {
+                            handler.nextPage(terminal);
+                            continue;
+                        }
+                        if (tokens[0].equals("%stream") && tokens.length == 2) {
+                            handler.setStream(tokens[1]);
+                            continue;
+                        }
+                        if (tokens[0].equals("%count") && tokens.length == 2) {
+                            handler.setCount(tokens[1]);
+                            continue;
+                        }
+                        if (tokens[0].equals("%stats") && tokens.length == 1) {
+                            terminal.writer().print(handler.getMetrics().format());
+                            terminal.writer().flush();
+                            continue;
+                        }
                         if (tokens[0].equals("%term") && tokens.length == 1) {
                             handler.setQueryTerm();
                             continue;
@@ -67,6 +125,10 @@ public class Searcher {
                             handler.setQueryFuzzy();
                             continue;
                         }
+                        if (tokens[0].equals("%prefix") && tokens.length == 1) {
+                            handler.setQueryPrefix();
+                            continue;
+                        }
                         logger.info("Incorrect line.");
                         terminal.writer().println(usage);
                     } else {
@@ -78,9 +140,99 @@ public class Searcher {
                     logger.error("Error executing line.");
                 }
             }
+            if (queryLog != null) {
+                queryLog.close();
+            }
+        } catch (IOException e) {
+            logger.error("An error has occured", e);
+        }
+
+    }
+
+    /**
+     * --server [PORT]: answers queries over HTTP instead of reading them from the terminal.
+     */
+    private static void serve(Path indexPath, String[] args) {
+        int port = SearchServer.DEFAULT_PORT;
+        try {
+            if (!args[0].equals("--server") || args.length > 2) {
+                throw new NumberFormatException();
+            }
+            if (args.length == 2) {
+                port = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: java -jar Searcher-1.0.0-jar-with-dependencies.jar [--server [PORT]]"
+                    + " Server threads: -Dsearcher.serverThreads, queries in flight: -Dsearcher.maxInFlight,"
+                    + " results per query: -Dsearcher.maxLimit (default " + SearchServer.DEFAULT_MAX_LIMIT + ").");
+            return;
+        }
+        try (SearchHandler handler = new SearchHandler(indexPath, refreshMillis, cacheSize,
+                new SlicedSearcherFactory(searchThreads, sliceDocs, sliceSegments), preload)) {
+            handler.setMaxPassages(maxPassages);
+            handler.setMaxHighlightLength(maxHighlightLength);
+            if (!metricsFile.isEmpty()) {
+                handler.getMetrics().dumpTo(Paths.get(metricsFile), metricsIntervalMillis);
+            }
+            QueryLog queryLog = warmUp(handler);
+            SearchServer server = new SearchServer(handler, port, serverThreads, maxInFlight);
+            server.setMaxLimit(maxLimit);
+            server.start();
+            // on SIGTERM or Ctrl-C, stop serving and close everything before the JVM exits
+            Thread main = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                main.interrupt();
+                try {
+                    main.join(SHUTDOWN_TIMEOUT_MILLIS);
+                } catch (InterruptedException ignore) {
+                    // exiting anyway
+                }
+            }, "searcher-shutdown"));
+            try {
+                main.join();
+            } catch (InterruptedException e) {
+                logger.info("Shutting down");
+            } finally {
+                server.close();
+                if (queryLog != null) {
+                    queryLog.close();
+                }
+            }
         } catch (IOException e) {
             logger.error("An error has occured", e);
         }
+    }
 
+    /**
+     * Runs the queries of the warm-up file and the most recently logged ones, or default queries
+     * when there are none, then starts logging queries. Returns the query log, or null when
+     * queries are not logged.
+     */
+    private static QueryLog warmUp(SearchHandler handler) {
+        logger.info("Warming up...");
+        List<QueryLog.Entry> queries = new ArrayList<>();
+        if (!warmupFile.isEmpty()) {
+            try {
+                queries.addAll(QueryLog.read(Paths.get(warmupFile)));
+            } catch (IOException e) {
+                logger.warn("Warming up without the queries of {}", warmupFile);
+            }
+        }
+        QueryLog queryLog = null;
+        if (!queryLogFile.isEmpty()) {
+            try {
+                queryLog = new QueryLog(Paths.get(queryLogFile), queryLogSize);
+                queries.addAll(queryLog.recent(warmupReplay));
+            } catch (IOException e) {
+                logger.warn("Queries will not be logged to {}", queryLogFile);
+            }
+        }
+        StartupWarmup warmup = new StartupWarmup(handler);
+        warmup.setRounds(warmupRounds);
+        warmup.setMaxMillis(warmupMillis);
+        warmup.run(queries);
+        handler.setQueryLog(queryLog);
+        logger.info("Ready {} ms after start", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        return queryLog;
     }
 }
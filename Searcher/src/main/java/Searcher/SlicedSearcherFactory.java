@@ -0,0 +1,103 @@
+package Searcher;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates searchers that score groups of segments in parallel on a shared pool.
+ * Small segments are grouped into slices of at most maxDocsPerSlice documents and
+ * maxSegmentsPerSlice segments, so tasks are not dominated by scheduling overhead.
+ * With at most one thread, or when the whole index fits in one slice, searchers are single threaded.
+ */
+class SlicedSearcherFactory extends SearcherFactory implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(SlicedSearcherFactory.class);
+    static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_MAX_DOCS_PER_SLICE = 250_000;
+    static final int DEFAULT_MAX_SEGMENTS_PER_SLICE = 5;
+
+    private final int maxDocsPerSlice;
+    private final int maxSegmentsPerSlice;
+    private final ExecutorService executor;
+
+    SlicedSearcherFactory(int threads, int maxDocsPerSlice, int maxSegmentsPerSlice) {
+        this.maxDocsPerSlice = Math.max(1, maxDocsPerSlice);
+        this.maxSegmentsPerSlice = Math.max(1, maxSegmentsPerSlice);
+        if (threads > 1) {
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "searcher-slice");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.info("Searching up to {} slices of at most {} documents or {} segments in parallel",
+                    threads, this.maxDocsPerSlice, this.maxSegmentsPerSlice);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+        if (executor == null) {
+            return new IndexSearcher(reader);
+        }
+        IndexSearcher.LeafSlice[] slices = slices(reader.leaves());
+        if (slices.length < 2) {
+            return new IndexSearcher(reader);
+        }
+        logger.debug("Searching {} segments in {} slices", reader.leaves().size(), slices.length);
+        return new IndexSearcher(reader, executor) {
+            // called from the super constructor, which is why the slices are computed beforehand
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                return slices;
+            }
+        };
+    }
+
+    /**
+     * Largest segments first; a segment above the document limit gets a slice of its own,
+     * the rest are packed in order until either limit is reached.
+     */
+    private IndexSearcher.LeafSlice[] slices(List<LeafReaderContext> leaves) {
+        List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+        sorted.sort(Comparator.comparingInt((LeafReaderContext leaf) -> leaf.reader().maxDoc()).reversed());
+        List<IndexSearcher.LeafSlice> slices = new ArrayList<>();
+        List<LeafReaderContext> group = new ArrayList<>();
+        long docs = 0;
+        for (LeafReaderContext leaf : sorted) {
+            if (leaf.reader().maxDoc() > maxDocsPerSlice) {
+                slices.add(new IndexSearcher.LeafSlice(leaf));
+                continue;
+            }
+            group.add(leaf);
+            docs += leaf.reader().maxDoc();
+            if (docs > maxDocsPerSlice || group.size() >= maxSegmentsPerSlice) {
+                slices.add(new IndexSearcher.LeafSlice(group.toArray(new LeafReaderContext[0])));
+                group.clear();
+                docs = 0;
+            }
+        }
+        if (!group.isEmpty()) {
+            slices.add(new IndexSearcher.LeafSlice(group.toArray(new LeafReaderContext[0])));
+        }
+        return slices.toArray(new IndexSearcher.LeafSlice[0]);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
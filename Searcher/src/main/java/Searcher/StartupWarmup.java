@@ -0,0 +1,131 @@
+package Searcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs queries before the first user query, so that it does not pay for reading the index
+ * from disk and for compiling the search code. Queries are run a few rounds over, with
+ * highlighting, until the rounds or the time budget run out. Without any queries given,
+ * the most frequent terms of every language are searched with every query type.
+ */
+class StartupWarmup {
+    private static Logger logger = LoggerFactory.getLogger(StartupWarmup.class);
+    static final int DEFAULT_ROUNDS = 3;
+    static final long DEFAULT_MAX_MILLIS = 10_000;
+    static final int DEFAULT_REPLAY = 100;
+    // frequent terms searched per language when no queries are given
+    private static final int DEFAULT_TERMS = 5;
+    private static final int LIMIT = 10;
+
+    private final SearchHandler handler;
+    private int rounds = DEFAULT_ROUNDS;
+    private long maxMillis = DEFAULT_MAX_MILLIS;
+
+    StartupWarmup(SearchHandler handler) {
+        this.handler = handler;
+    }
+
+    void setRounds(int rounds) {
+        this.rounds = Math.max(1, rounds);
+    }
+
+    void setMaxMillis(long maxMillis) {
+        this.maxMillis = Math.max(0, maxMillis);
+    }
+
+    /**
+     * Runs queries, or the default ones when there are none, and returns the time spent in milliseconds.
+     * Their latencies are reported as warmup timers instead of query timers.
+     */
+    long run(List<QueryLog.Entry> queries) {
+        long start = System.nanoTime();
+        if (maxMillis > 0) {
+            // completions are built in the background, and the default queries are read from them
+            try {
+                if (!handler.awaitSuggesters(maxMillis)) {
+                    logger.warn("Completions were not built within {} ms", maxMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        if (queries.isEmpty()) {
+            queries = defaultQueries();
+        }
+        if (maxMillis == 0 || queries.isEmpty()) {
+            logger.info("Nothing to warm up");
+            return 0;
+        }
+        long deadline = start + maxMillis * 1_000_000;
+        long firstRound = 0;
+        long lastRound = 0;
+        int round = 0;
+        int run = 0;
+        int failed = 0;
+        while (round < rounds && System.nanoTime() < deadline) {
+            long roundStart = System.nanoTime();
+            for (QueryLog.Entry query : queries) {
+                if (System.nanoTime() >= deadline) {
+                    break;
+                }
+                long queryStart = System.nanoTime();
+                try {
+                    handler.search(query.line, query.type, query.lang, LIMIT, true);
+                } catch (Exception e) {
+                    logger.debug("Warm-up query {} failed: {}", query, e.getMessage());
+                    failed++;
+                }
+                handler.getMetrics().record("warmup.query", System.nanoTime() - queryStart);
+                run++;
+            }
+            long roundMillis = (System.nanoTime() - roundStart) / 1_000_000;
+            if (round == 0) {
+                firstRound = roundMillis;
+            }
+            lastRound = roundMillis;
+            round++;
+        }
+        // the query timers should only describe user queries
+        handler.getMetrics().clear("query.");
+        handler.getMetrics().clear("failures.");
+        handler.getMetrics().clear("suggest.didYouMean");
+        long took = System.nanoTime() - start;
+        handler.getMetrics().record("warmup", took);
+        logger.info("Warmed up in {} ms: {} of {} queries in {} rounds, {} failed, first round {} ms, last round {} ms",
+                took / 1_000_000, run, queries.size() * rounds, round, failed, firstRound, lastRound);
+        return took / 1_000_000;
+    }
+
+    // frequent terms alone, in pairs as phrases, misspelled and as prefixes
+    private List<QueryLog.Entry> defaultQueries() {
+        List<QueryLog.Entry> queries = new ArrayList<>();
+        for (String lang : new String[]{"en", "pl"}) {
+            List<String> terms;
+            try {
+                terms = handler.complete("", lang, DEFAULT_TERMS);
+            } catch (Exception e) {
+                logger.warn("Could not read frequent terms of {}: {}", lang, e.getMessage());
+                continue;
+            }
+            Set<QueryLog.Entry> entries = new LinkedHashSet<>();
+            for (int i = 0; i < terms.size(); i++) {
+                String term = terms.get(i);
+                entries.add(new QueryLog.Entry("term", lang, term));
+                entries.add(new QueryLog.Entry("fuzzy", lang, term + "x"));
+                entries.add(new QueryLog.Entry("prefix", lang, term.substring(0, Math.min(3, term.length()))));
+                if (i > 0) {
+                    entries.add(new QueryLog.Entry("phrase", lang, terms.get(i - 1) + " " + term));
+                }
+            }
+            queries.addAll(entries);
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,162 @@
+package Searcher;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.search.spell.HighFrequencyDictionary;
+import org.apache.lucene.search.spell.SuggestMode;
+import org.apache.lucene.search.spell.SuggestWord;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Completions and spelling corrections of the terms of one language shard.
+ * Completions come from an FST of the body and file name terms of every index segment, weighted
+ * by document frequency. Segments never change, so an update only builds the FSTs of segments
+ * that are new, merged ones included, and the previous set answers until it is done.
+ * A completion's weight is summed over the segments that return it, so the order is approximate.
+ * Corrections are read from the index terms directly.
+ */
+class Suggester {
+    private static Logger logger = LoggerFactory.getLogger(Suggester.class);
+
+    private final String lang;
+    private final DirectSpellChecker spellChecker = new DirectSpellChecker();
+    // FSTs by segment core, replaced as a whole; null before the first update
+    private volatile Map<Object, Lookup> segments;
+    private volatile long builtVersion = -1;
+
+    Suggester(String lang) {
+        this.lang = lang;
+    }
+
+    long builtVersion() {
+        return builtVersion;
+    }
+
+    /**
+     * Brings the completions up to date with reader, building the FSTs of the segments not seen before.
+     * Not to be called from several threads at once.
+     */
+    void update(DirectoryReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<Object, Lookup> previous = segments != null ? segments : Collections.emptyMap();
+        Map<Object, Lookup> current = new LinkedHashMap<>();
+        int built = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            IndexReader.CacheHelper core = leaf.reader().getCoreCacheHelper();
+            Object key = core != null ? core.getKey() : new Object();
+            Lookup lookup = previous.get(key);
+            if (lookup == null) {
+                lookup = build(leaf.reader());
+                built++;
+            }
+            current.put(key, lookup);
+        }
+        segments = current;
+        builtVersion = reader.getVersion();
+        logger.info("Updated completions of shard {} in {} ms, built {} of {} segments",
+                lang, System.currentTimeMillis() - start, built, current.size());
+    }
+
+    private Lookup build(LeafReader segment) throws IOException {
+        WFSTCompletionLookup lookup = new WFSTCompletionLookup(new ByteBuffersDirectory(), "suggest-" + lang);
+        lookup.build(new ConcatenatedIterator(
+                new HighFrequencyDictionary(segment, "body-" + lang, 0).getEntryIterator(),
+                new HighFrequencyDictionary(segment, "name-" + lang, 0).getEntryIterator()));
+        return lookup;
+    }
+
+    /**
+     * Up to count most frequent terms starting with prefix, with their document frequency
+     * as value, or null before the first update.
+     */
+    List<Lookup.LookupResult> complete(String prefix, int count) throws IOException {
+        Map<Object, Lookup> current = segments;
+        if (current == null) {
+            return null;
+        }
+        if (current.size() == 1) {
+            return current.values().iterator().next().lookup(prefix, false, count);
+        }
+        Map<String, Long> weights = new HashMap<>();
+        for (Lookup lookup : current.values()) {
+            for (Lookup.LookupResult result : lookup.lookup(prefix, false, count)) {
+                weights.merge(result.key.toString(), result.value, Long::sum);
+            }
+        }
+        List<Lookup.LookupResult> results = new ArrayList<>();
+        for (Map.Entry<String, Long> weight : weights.entrySet()) {
+            results.add(new Lookup.LookupResult(weight.getKey(), weight.getValue()));
+        }
+        results.sort(Comparator.comparingLong((Lookup.LookupResult result) -> result.value).reversed());
+        return results.size() > count ? results.subList(0, count) : results;
+    }
+
+    /**
+     * The most likely correction of a term that is not in the index, or null.
+     */
+    SuggestWord correct(IndexReader reader, String term) throws IOException {
+        SuggestWord[] words = spellChecker.suggestSimilar(new Term("body-" + lang, term), 1, reader,
+                SuggestMode.SUGGEST_WHEN_NOT_IN_INDEX);
+        return words.length > 0 ? words[0] : null;
+    }
+
+    // terms of both fields; the lookup sorts its input and keeps the higher weight of a duplicate
+    private static class ConcatenatedIterator implements InputIterator {
+        private final InputIterator[] parts;
+        private int current;
+
+        ConcatenatedIterator(InputIterator... parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            while (current < parts.length) {
+                BytesRef term = parts[current].next();
+                if (term != null) {
+                    return term;
+                }
+                current++;
+            }
+            return null;
+        }
+
+        @Override
+        public long weight() {
+            return parts[current].weight();
+        }
+
+        @Override
+        public BytesRef payload() {
+            return null;
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return false;
+        }
+
+        @Override
+        public Set<BytesRef> contexts() {
+            return null;
+        }
+
+        @Override
+        public boolean hasContexts() {
+            return false;
+        }
+    }
+}
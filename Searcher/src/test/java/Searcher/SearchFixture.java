@@ -0,0 +1,66 @@
+package Searcher;
+
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Runs queries like the REPL does, for the benchmarks, which get it from the Searcher test jar.
+ * Results are rendered as usual, to a terminal that discards them, and are not cached.
+ */
+public class SearchFixture implements Closeable {
+    private final SearchHandler handler;
+    private final Terminal terminal;
+
+    /**
+     * Opens index with the REPL settings lang (en/pl/all), details (on/off), limit
+     * and mode (term/phrase/fuzzy/prefix).
+     */
+    public SearchFixture(Path index, String lang, String details, String limit, String mode) throws Exception {
+        handler = new SearchHandler(index, SearchHandler.DEFAULT_REFRESH_MILLIS, 0);
+        try {
+            handler.setLang(lang);
+            handler.setDetails(details);
+            handler.setLimit(limit);
+            if (mode.equals("phrase")) {
+                handler.setQueryPhrase();
+            } else if (mode.equals("fuzzy")) {
+                handler.setQueryFuzzy();
+            } else if (mode.equals("prefix")) {
+                handler.setQueryPrefix();
+            } else {
+                handler.setQueryTerm();
+            }
+            terminal = new DumbTerminal(new ByteArrayInputStream(new byte[0]), new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        } catch (Exception e) {
+            handler.close();
+            throw e;
+        }
+    }
+
+    public void query(String line) throws Exception {
+        handler.doQuery(line, terminal);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            terminal.close();
+        } finally {
+            handler.close();
+        }
+    }
+}
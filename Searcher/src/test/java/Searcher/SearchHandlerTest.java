@@ -0,0 +1,153 @@
+package Searcher;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.morfologik.MorfologikAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SearchHandlerTest {
+    private static final FieldType BODY_TYPE = new FieldType(TextField.TYPE_STORED);
+
+    static {
+        BODY_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        BODY_TYPE.freeze();
+    }
+
+    @TempDir
+    Path temp;
+
+    private SearchHandler handler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // zork is a made-up word, so both analyzers keep it as it is
+        try (Analyzer analyzer = new EnglishAnalyzer()) {
+            writeShard("en", analyzer, new String[][]{
+                    {"/docs/en1.txt", body(1, 9)}, {"/docs/en2.txt", body(2, 8)}, {"/docs/en3.txt", body(3, 7)},
+                    {"/docs/en4.txt", body(4, 6)}, {"/docs/en5.txt", body(5, 5)}, {"/docs/both.txt", body(6, 4)}});
+        }
+        try (Analyzer analyzer = new MorfologikAnalyzer()) {
+            writeShard("pl", analyzer, new String[][]{
+                    {"/docs/pl1.txt", body(1, 30)}, {"/docs/pl2.txt", body(2, 30)}, {"/docs/pl3.txt", body(3, 30)},
+                    {"/docs/pl4.txt", body(4, 30)}, {"/docs/both.txt", body(1, 40)}});
+        }
+        handler = new SearchHandler(temp, SearchHandler.DEFAULT_REFRESH_MILLIS, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        handler.close();
+    }
+
+    @Test
+    void mergesShardsByRelativeScore() throws Exception {
+        SearchResult result = handler.search("zork", "term", "all", 100, false);
+
+        // the best hit of each shard scores 1 relative to its shard
+        assertThat(Arrays.asList(result.paths).subList(0, 2)).containsExactlyInAnyOrder("/docs/both.txt", "/docs/pl4.txt");
+        assertThat(result.paths).hasSize(10).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void showsAPathInBothShardsOnce() throws Exception {
+        SearchResult result = handler.search("zork", "term", "all", 100, false);
+
+        assertThat(Arrays.stream(result.paths).filter(path -> path.equals("/docs/both.txt"))).hasSize(1);
+        assertThat(handler.search("zork", "term", "en", 100, false).paths).hasSize(6);
+        assertThat(handler.search("zork", "term", "pl", 100, false).paths).hasSize(5);
+    }
+
+    @Test
+    void pagesListTheSameHitsAsOneQuery() throws Exception {
+        List<String> expected = Arrays.asList(handler.search("zork", "term", "all", 100, false).paths);
+        handler.setLang("all");
+        handler.setCount("off");
+        handler.setPageSize("3");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (Terminal terminal = new DumbTerminal(new ByteArrayInputStream(new byte[0]), output)) {
+            handler.doQuery("zork", terminal);
+            for (int page = 0; page < 5; page++) {
+                handler.nextPage(terminal);
+            }
+            terminal.writer().flush();
+        }
+
+        List<String> lines = Arrays.asList(output.toString("UTF-8").split("\\r?\\n"));
+        List<String> paged = lines.stream().filter(line -> line.startsWith("/")).collect(Collectors.toList());
+        assertThat(paged).isEqualTo(expected);
+        assertThat(lines).contains("No more results");
+    }
+
+    @Test
+    void answersARepeatedQueryFromTheCache() throws Exception {
+        try (SearchHandler cached = new SearchHandler(temp, SearchHandler.DEFAULT_REFRESH_MILLIS, SearchHandler.DEFAULT_CACHE_SIZE)) {
+            cached.setLang("all");
+            cached.setCount("on");
+            String first = query(cached, "zork");
+            String second = query(cached, "zork");
+
+            assertThat(second).isEqualTo(first).contains("/docs/both.txt");
+            assertThat(cached.getMetrics().count("cache.misses")).isEqualTo(1);
+            assertThat(cached.getMetrics().count("cache.hits")).isEqualTo(1);
+            // the hit did not search the shards again
+            assertThat(cached.getMetrics().snapshot().get("countHits.count")).isEqualTo(1L);
+        }
+    }
+
+    private static String query(SearchHandler handler, String line) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (Terminal terminal = new DumbTerminal(new ByteArrayInputStream(new byte[0]), output)) {
+            handler.doQuery(line, terminal);
+            terminal.writer().flush();
+        }
+        return output.toString("UTF-8");
+    }
+
+    private static String body(int matches, int filler) {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < matches; i++) {
+            words.add("zork");
+        }
+        for (int i = 0; i < filler; i++) {
+            words.add("filler" + i);
+        }
+        return String.join(" ", words);
+    }
+
+    private void writeShard(String lang, Analyzer analyzer, String[][] documents) throws IOException {
+        try (FSDirectory directory = FSDirectory.open(temp.resolve(lang));
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer))) {
+            for (String[] document : documents) {
+                Document doc = new Document();
+                doc.add(new StringField("fullPath", document[0], Field.Store.YES));
+                doc.add(new SortedDocValuesField("fullPath", new BytesRef(document[0])));
+                doc.add(new Field("body-" + lang, document[1], BODY_TYPE));
+                doc.add(new TextField("name-" + lang, document[0].substring(document[0].lastIndexOf('/') + 1), Field.Store.YES));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+        }
+    }
+}